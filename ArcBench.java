@@ -0,0 +1,71 @@
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import arc.Interp;
+import arc.LL;
+import arc.LinesFromInputStream;
+import arc.Main;
+
+/** Runs Arc scripts with the evaluator's switches set from the command line,
+ * and prints the elapsed time and the bytes allocated by the main thread
+ * for loading the prelude and for each script.
+ * Use it to compare the execution modes, or two builds of arc.jar,
+ * on the same benchmark script.
+ *
+ * <pre>
+ * {@code
+ * $ javac -cp arc.jar ArcBench.java
+ * $ java -cp arc.jar:. ArcBench 9queens-bench.arc
+ * $ java -cp arc.jar:. ArcBench -lists 9queens-bench.arc
+ * $ java -cp arc.jar:. ArcBench -no-opt call-bench.arc
+ * }
+ * </pre>
+ * Options:
+ * <dl>
+ * <dt>-lists</dt> <dd>evaluate lambda bodies as lists, not node trees</dd>
+ * <dt>-no-opt</dt> <dd>turn off the second optimization tier</dd>
+ * <dt>-no-native</dt> <dd>keep the prelude's functions written in Arc</dd>
+ * </dl>
+ */
+public class ArcBench {
+    static final com.sun.management.ThreadMXBean MX =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+            case "-lists": LL.setCompileNodes(false); break;
+            case "-no-opt": LL.setOptimizeThreshold(0); break;
+            case "-no-native": LL.setNativePrelude(false); break;
+            default:
+                System.err.println("unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+        var interp = new Interp ();
+        long[] m = start();
+        Main.initialize(interp);
+        report("prelude", m);
+        for (; i < args.length; i++) {
+            m = start();
+            interp.run(new LinesFromInputStream
+                       (new FileInputStream (args[i])), null);
+            report(args[i], m);
+        }
+    }
+
+    // Returns the current time and allocated bytes of this thread.
+    static long[] start() {
+        return new long[] {
+            System.nanoTime(),
+            MX.getThreadAllocatedBytes(Thread.currentThread().getId())
+        };
+    }
+
+    static void report(String what, long[] m) {
+        long[] now = start();
+        System.err.println(what + ": " + (now[0] - m[0]) / 1_000_000 +
+                           " ms, " + (now[1] - m[1]) / (1 << 20) +
+                           " MB allocated");
+    }
+}
@@ -0,0 +1,80 @@
+import java.lang.ref.WeakReference;
+import arc.Symbol;
+
+/** A benchmark of symbol interning under contention.
+ * Each of N threads interns names drawn from a fixed set of 4096 with
+ * Symbol.of, and makes an uninterned symbol (uniq) every 256 calls.
+ * It prints the time of the last of five rounds for each thread count,
+ * and then checks that an unreferenced symbol is reclaimed while a
+ * referenced one keeps its identity.
+ *
+ * <pre>
+ * {@code
+ * $ javac -cp arc.jar SymbolBench.java
+ * $ java -cp arc.jar:. SymbolBench 1 2 4 8
+ * 1 threads: 15 ms
+ * 2 threads: 31 ms
+ * ...
+ * reclaimed: true, same after re-intern: true
+ * }
+ * </pre>
+ */
+public class SymbolBench {
+    static final int NAMES = 4096;
+    static final int CALLS = 2_000_000;
+    static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String[] names = new String[NAMES];
+        Symbol[] live = new Symbol[NAMES]; // keeps the names interned
+        for (int i = 0; i < NAMES; i++) {
+            names[i] = "name" + i;
+            live[i] = Symbol.of(names[i]);
+        }
+        if (args.length == 0)
+            args = new String[] { "1", "8" };
+        for (String arg: args) {
+            int threads = Integer.parseInt(arg);
+            long elapsed = 0;
+            for (int round = 0; round < ROUNDS; round++)
+                elapsed = run(threads, names);
+            System.out.println(threads + " threads: " +
+                               elapsed / 1_000_000 + " ms");
+        }
+
+        var w = new WeakReference<Symbol> (Symbol.of("transient-symbol"));
+        for (int i = 0; i < 200_000; i++)
+            Symbol.of("tmp" + i);
+        for (int i = 0; i < 10 && w.get() != null; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        System.out.println("reclaimed: " + (w.get() == null) +
+                           ", same after re-intern: " +
+                           (Symbol.of(names[5]) == live[5]));
+    }
+
+    // Interns names in the given number of threads at once; returns ns.
+    static long run(int threads, String[] names) throws InterruptedException {
+        var ts = new Thread[threads];
+        long t0 = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            ts[t] = new Thread (()-> {
+                    long x = 0;
+                    for (int i = 0; i < CALLS; i++) {
+                        x += Symbol.of(names[(i * 7 + seed) & (NAMES - 1)])
+                            .hashCode();
+                        if ((i & 255) == 0)
+                            Symbol.generateUninterned();
+                    }
+                    if (x == 42)
+                        System.out.println();
+                });
+            ts[t].start();
+        }
+        for (Thread th: ts)
+            th.join();
+        return System.nanoTime() - t0;
+    }
+}
@@ -1,4 +1,4 @@
-// H22.09.29/R02.04.30 (鈴)
+// H22.09.29/R08.10.18 (鈴)
 package arc;
 
 import java.util.ArrayList;
@@ -111,6 +111,9 @@ public class ArcReader
         } else if (token == Token.LBRACKET) {
             lex.next();
             return parseBracketBody();
+        } else if (token == Token.HASH_LPAREN) {
+            lex.next();
+            return parseVecBody();
         } else {
             return token;
         }
@@ -154,6 +157,19 @@ public class ArcReader
                        LL.mapcar(xs, null));
     }
 
+    // #( ... ) => 各要素を評価せずに並べたベクタ
+    private Vec parseVecBody()
+        throws SyntaxException, CharEnumerator.EOFException
+    {
+        var xs = new ArrayList<Object> ();
+        while (lex.current() != Token.RPAREN) {
+            Object e = parseExpression();
+            xs.add(e);
+            lex.next();
+        }
+        return new Vec (xs.toArray());
+    }
+
 
     /** 字句解析器 */
     private static final class Lexer
@@ -253,7 +269,10 @@ public class ArcReader
                 if (ch == '#') {
                     if (ce.moveNext()) {
                         ch = ce.current();
-                        if (Character.isWhitespace(ch)) {
+                        if (ch == '(') {
+                            ce.moveNext();
+                            return Token.HASH_LPAREN;
+                        } else if (Character.isWhitespace(ch)) {
                             continued = false;
                         } else {
                             sb.append(ch);
@@ -490,10 +509,17 @@ public class ArcReader
     /** 文字列に対して数としての解釈を試みる。
      * 不正な数ならば SyntaxException を返す。
      * 数でないならば null を返す。
+     * <p>
+     * 例外に頼らず，文字列を一度走査するだけで整数 (基数 2, 8, 10, 16)，
+     * 実数，有理数のどれかに分類する。シンボルは通常，先頭の１文字で
+     * 数でないと判明する。受理する表記は Integer.valueOf, Long.valueOf,
+     * new BigInteger, Double.valueOf を順に試していた従来の実装と同じ。
      */
     private static Object tryToParseAsNumber(String s) {
         int radix = 10;
-        if (s.startsWith("#") && s.length() >= 3) {
+        int start = 0;
+        int end = s.length();
+        if (s.startsWith("#") && end >= 3) {
             switch (s.charAt(1)) {
             case 'b': case 'B':
                 radix = 2; break;
@@ -504,51 +530,139 @@ public class ArcReader
             default:
                 return null;
             }
-            s = s.substring(2);
+            start = 2;
         }
         boolean negative = false;
-        if (s.startsWith("-")) {
+        if (start < end && s.charAt(start) == '-') {
             negative = true;
-            s = s.substring(1);
+            start++;
         }
-        String[] ss = s.split("/", 2);
-        Number a = tryToParseAs1Number(ss[0], radix, negative);
-        if (ss.length == 1) {
-            return a;
+        int slash = s.indexOf('/', start);
+        if (slash < 0)
+            return tryToParseAs1Number(s, start, end, radix, negative);
+        Number a = tryToParseAs1Number(s, start, slash, radix, negative);
+        if (a == null)
+            return null;
+        Number b = tryToParseAs1Number(s, slash + 1, end, radix, false);
+        if (b == null) {
+            return null;
+        } else if (a instanceof Double || b instanceof Double) {
+            return new SyntaxException ("invalid rational: " +
+                                        s.substring(start));
+        } else if (b.equals(0) && a.equals(0)) {
+            return new SyntaxException ("not a number: " + s.substring(start));
         } else {
-            Number b = tryToParseAs1Number(ss[1], radix, false);
-            if (a == null || b == null) {
+            return Rational.result(a, b);
+        }
+    }
+
+    /** s の from から to の手前までを整数または実数として解釈する。
+     * negative ならば負号が先行していたとみなす。
+     * 数でなければ null を返す。
+     */
+    private static Number tryToParseAs1Number(String s, int from, int to,
+                                              int radix, boolean negative) {
+        if (from < to && s.charAt(from) == '-') // 負号の重複
+            return null;
+        Number n = tryToParseAsInteger(s, from, to, radix, negative);
+        if (n == null && radix == 10)
+            n = tryToParseAsDouble(s, from, to, negative);
+        return n;
+    }
+
+    // [+]数字列 を整数として解釈する。数字は Character.digit による。
+    private static Number tryToParseAsInteger(String s, int from, int to,
+                                              int radix, boolean negative) {
+        int i = from;
+        if (i < to && s.charAt(i) == '+' && ! negative)
+            i++;
+        int digitsFrom = i;
+        long value = 0;     // Long.MIN_VALUE も表せるように負の方向に累積する
+        boolean fits = true;
+        for (; i < to; i++) {
+            int d = Character.digit(s.charAt(i), radix);
+            if (d < 0)
                 return null;
-            } else if (a instanceof Double || b instanceof Double) {
-                return new SyntaxException ("invalid rational: " + s);
-            } else {
-                try {
-                    return Rational.result(a, b);
-                } catch (ArithmeticException ex) {
-                    return new SyntaxException ("not a number: " + s);
-                }
+            if (fits) {
+                if (value < (Long.MIN_VALUE + d) / radix)
+                    fits = false;
+                else
+                    value = value * radix - d;
             }
         }
+        if (digitsFrom == to)
+            return null;
+        if (fits && (negative || value != Long.MIN_VALUE))
+            return BuiltinMath.reg(negative ? value : -value);
+        String digits = s.substring(digitsFrom, to);
+        var big = new BigInteger (negative ? "-" + digits : digits, radix);
+        return BuiltinMath.reg(big);
     }
 
-    private static Number tryToParseAs1Number(String s, int radix,
-                                              boolean negative) {
-        if (s.startsWith("-"))
+    // Double.valueOf が受理する十進の実数表記を解釈する。すなわち
+    // [+]数字列[.数字列][(e|E)[+|-]数字列][f|F|d|D] (ただし仮数部に
+    // 少なくとも１個の数字) と Infinity と NaN を解釈する。
+    // 稀な十六進表記 (0x1p3 など) だけは Double.valueOf に委ねる。
+    private static Double tryToParseAsDouble(String s, int from, int to,
+                                             boolean negative) {
+        int i = from;
+        if (i < to && s.charAt(i) == '+' && ! negative)
+            i++;
+        if (i == to)
             return null;
-        if (negative)
-            s = "-" + s;
-        try {
-            return Integer.valueOf(s, radix);
-        } catch (NumberFormatException ex) {}
-        try {
-            return new BigInteger (s, radix);
-        } catch (NumberFormatException ex) {}
-        if (radix == 10) {
+        char ch = s.charAt(i);
+        if (! (isAsciiDigit(ch) || ch == '.')) {
+            if ((ch == 'I' && s.startsWith("Infinity", i) && i + 8 == to) ||
+                (ch == 'N' && s.startsWith("NaN", i) && i + 3 == to))
+                return toDouble(s, from, to, negative);
+            return null;
+        }
+        if (ch == '0' && i + 1 < to &&
+            (s.charAt(i + 1) == 'x' || s.charAt(i + 1) == 'X'))
             try {
-                return Double.valueOf(s); // new Double(s) は deprecated
-            } catch (NumberFormatException ex) {}
+                return toDouble(s, from, to, negative);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        int mantissaDigits = 0;
+        while (i < to && isAsciiDigit(s.charAt(i))) {
+            i++;
+            mantissaDigits++;
         }
-        return null;
+        if (i < to && s.charAt(i) == '.') {
+            i++;
+            while (i < to && isAsciiDigit(s.charAt(i))) {
+                i++;
+                mantissaDigits++;
+            }
+        }
+        if (mantissaDigits == 0)
+            return null;
+        if (i < to && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < to && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+                i++;
+            int expFrom = i;
+            while (i < to && isAsciiDigit(s.charAt(i)))
+                i++;
+            if (i == expFrom)
+                return null;
+        }
+        if (i < to && "fFdD".indexOf(s.charAt(i)) >= 0)
+            i++;
+        if (i != to)
+            return null;
+        return toDouble(s, from, to, negative);
+    }
+
+    private static boolean isAsciiDigit(char ch) {
+        return '0' <= ch && ch <= '9';
+    }
+
+    private static Double toDouble(String s, int from, int to,
+                                   boolean negative) {
+        String t = s.substring(from, to);
+        return Double.valueOf(negative ? "-" + t : t);
     }
 
     /** 引数がシンボルとして適切かどうか判定する。
@@ -579,6 +693,7 @@ public class ArcReader
         static final Symbol COMMA = Symbol.of(",");
         static final Symbol COMMA_AT = Symbol.of(",@");
         static final Symbol DOT = Symbol.of(".");
+        static final Symbol HASH_LPAREN = Symbol.of("#(");
         static final Symbol LBRACKET = Symbol.of("[");
         static final Symbol LPAREN = Symbol.of("(");
         static final Symbol RBRACKET = Symbol.of("]");
@@ -0,0 +1,368 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/** Builtins のための数値配列関数集
+ * 数値配列は long[] (型 longs) または double[] (型 doubles) で表す。
+ * 要素は箱に入れずに格納し，一括演算は Java の単純なループで行う。
+ * 単純なループは JIT コンパイラによって SIMD 命令に自動ベクトル化
+ * されうる。
+ * @see Builtins
+ */
+public class BuiltinArray
+{
+    /** このクラスはインスタンスを作らない。*/
+    private BuiltinArray () {}
+
+    /** 数値配列か？ */
+    static boolean isArray(Object x) {
+        return x instanceof long[] || x instanceof double[];
+    }
+
+    /** 数値配列の要素数 */
+    static int length(Object a) {
+        return (a instanceof long[]) ?
+            ((long[]) a).length : ((double[]) a).length;
+    }
+
+    // 数値配列でなければ例外を投げる。
+    private static Object check(Object a) {
+        if (! isArray(a))
+            throw new EvalException ("numeric array expected", a);
+        return a;
+    }
+
+    /** long[] の要素として x を long にする。*/
+    static long toLong(Object x) {
+        if (x instanceof Integer || x instanceof Long)
+            return ((Number) x).longValue();
+        throw new EvalException ("long expected", x);
+    }
+
+    /** double[] の要素として x を double にする。*/
+    static double toDouble(Object x) {
+        if (x instanceof Number)
+            return ((Number) x).doubleValue();
+        throw new EvalException ("number expected", x);
+    }
+
+    /** 長さ n で各要素が x である long[] を作る。*/
+    static long[] newLongs(int n, Object x) {
+        var a = new long[n];
+        if (x != null)
+            Arrays.fill(a, toLong(x));
+        return a;
+    }
+
+    /** 長さ n で各要素が x である double[] を作る。*/
+    static double[] newDoubles(int n, Object x) {
+        var a = new double[n];
+        if (x != null)
+            Arrays.fill(a, toDouble(x));
+        return a;
+    }
+
+    /** 数値の並びから long[] を作る。*/
+    static long[] toLongs(Iterable<?> xs) {
+        int n = 0;
+        for (Object x: xs)
+            n++;
+        var a = new long[n];
+        int i = 0;
+        for (Object x: xs)
+            a[i++] = toLong(x);
+        return a;
+    }
+
+    /** 数値の並びから double[] を作る。*/
+    static double[] toDoubles(Iterable<?> xs) {
+        int n = 0;
+        for (Object x: xs)
+            n++;
+        var a = new double[n];
+        int i = 0;
+        for (Object x: xs)
+            a[i++] = toDouble(x);
+        return a;
+    }
+
+    /** 数値配列の要素からなる Vec を作る。*/
+    static Vec toVec(Object a) {
+        int n = length(a);
+        var v = new Object[n];
+        for (int i = 0; i < n; i++)
+            v[i] = get(a, i);
+        return new Vec (v);
+    }
+
+    /** 数値配列の i 番目の要素を Arc の数として返す。*/
+    static Object get(Object a, int i) {
+        try {
+            if (a instanceof long[])
+                return BuiltinMath.reg(((long[]) a)[i]);
+            else
+                return ((double[]) a)[i];
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new EvalException ("index " + i + " for", a);
+        }
+    }
+
+    /** 数値配列の i 番目の要素を x にする。*/
+    static void set(Object a, int i, Object x) {
+        try {
+            if (a instanceof long[])
+                ((long[]) a)[i] = toLong(x);
+            else
+                ((double[]) a)[i] = toDouble(x);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new EvalException ("index " + i + " for", a);
+        }
+    }
+
+    /** (arr-sum a) 要素の総和 */
+    static Number sum(Object a) {
+        check(a);
+        if (a instanceof long[]) {
+            long[] la = (long[]) a;
+            long s = 0;
+            for (int i = 0; i < la.length; i++) {
+                long t = s + la[i];
+                if (((s ^ t) & (la[i] ^ t)) < 0) // 桁あふれ
+                    return sumBig(la);
+                s = t;
+            }
+            return BuiltinMath.reg(s);
+        } else {
+            // 部分和を４本に分けて加算の依存の連鎖を断つ。
+            double[] da = (double[]) a;
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < da.length; i += 4) {
+                s0 += da[i];
+                s1 += da[i + 1];
+                s2 += da[i + 2];
+                s3 += da[i + 3];
+            }
+            for (; i < da.length; i++)
+                s0 += da[i];
+            return (s0 + s1) + (s2 + s3);
+        }
+    }
+
+    private static Number sumBig(long[] la) {
+        BigInteger s = BigInteger.ZERO;
+        for (long x: la)
+            s = s.add(BigInteger.valueOf(x));
+        return BuiltinMath.reg(s);
+    }
+
+    /** (arr-dot a b) 同じ型で同じ長さの配列の内積 */
+    static Number dot(Object a, Object b) {
+        check(a);
+        if (a.getClass() != check(b).getClass() ||
+            length(a) != length(b))
+            throw new EvalException ("arrays of the same type and length " +
+                                     "expected", LL.list(a, b));
+        if (a instanceof long[]) {
+            long[] la = (long[]) a;
+            long[] lb = (long[]) b;
+            try {
+                long s = 0;
+                for (int i = 0; i < la.length; i++)
+                    s = Math.addExact(s, Math.multiplyExact(la[i], lb[i]));
+                return BuiltinMath.reg(s);
+            } catch (ArithmeticException ex) {
+                BigInteger s = BigInteger.ZERO;
+                for (int i = 0; i < la.length; i++)
+                    s = s.add(BigInteger.valueOf(la[i])
+                              .multiply(BigInteger.valueOf(lb[i])));
+                return BuiltinMath.reg(s);
+            }
+        } else {
+            double[] da = (double[]) a;
+            double[] db = (double[]) b;
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < da.length; i += 4) {
+                s0 += da[i] * db[i];
+                s1 += da[i + 1] * db[i + 1];
+                s2 += da[i + 2] * db[i + 2];
+                s3 += da[i + 3] * db[i + 3];
+            }
+            for (; i < da.length; i++)
+                s0 += da[i] * db[i];
+            return (s0 + s1) + (s2 + s3);
+        }
+    }
+
+    // Long.MIN_VALUE の符号を反転すると桁あふれする。
+    private static void checkNegatable(long[] la) {
+        for (long x: la)
+            if (x == Long.MIN_VALUE)
+                throw new ArithmeticException ("long overflow");
+    }
+
+    /** (arr-map a op [k]) 各要素に演算 op を施して置き換え，a を返す。
+     * op は次のシンボルのどれかである。
+     * <ul>
+     * <li>+ - * / : 各要素と k との二項演算 (long[] では / は整数除算)
+     * <li>neg abs : 符号反転と絶対値
+     * <li>sqrt exp log : double[] だけに使える初等関数
+     * </ul>
+     * long[] の演算が桁あふれしたら例外を投げる。そのとき a は変更されない。
+     */
+    static Object map(Object a, Symbol op, Object k) {
+        check(a);
+        String name = op.name;
+        boolean binary = name.equals("+") || name.equals("-") ||
+            name.equals("*") || name.equals("/");
+        if (binary && k == null)
+            throw new EvalException ("operand expected for", op);
+        if (a instanceof long[]) {
+            long[] la = (long[]) a;
+            long y = binary ? toLong(k) : 0;
+            // 途中で桁あふれして a が半端に更新されないように，
+            // 各演算は先にすべての要素を検査してから置き換える。
+            try {
+                switch (name) {
+                case "+":
+                    for (long x: la)
+                        Math.addExact(x, y);
+                    for (int i = 0; i < la.length; i++)
+                        la[i] += y;
+                    return a;
+                case "-":
+                    for (long x: la)
+                        Math.subtractExact(x, y);
+                    for (int i = 0; i < la.length; i++)
+                        la[i] -= y;
+                    return a;
+                case "*":
+                    for (long x: la)
+                        Math.multiplyExact(x, y);
+                    for (int i = 0; i < la.length; i++)
+                        la[i] *= y;
+                    return a;
+                case "/":
+                    if (y == 0)
+                        throw new EvalException ("division by zero", a);
+                    if (y == -1)
+                        checkNegatable(la);
+                    for (int i = 0; i < la.length; i++)
+                        la[i] /= y;
+                    return a;
+                case "neg":
+                    checkNegatable(la);
+                    for (int i = 0; i < la.length; i++)
+                        la[i] = -la[i];
+                    return a;
+                case "abs":
+                    checkNegatable(la);
+                    for (int i = 0; i < la.length; i++)
+                        la[i] = Math.abs(la[i]);
+                    return a;
+                default:
+                    break;
+                }
+            } catch (ArithmeticException ex) {
+                throw new EvalException ("long overflow in " + name, a);
+            }
+        } else {
+            double[] da = (double[]) a;
+            double y = binary ? toDouble(k) : 0;
+            switch (name) {
+            case "+":
+                for (int i = 0; i < da.length; i++)
+                    da[i] += y;
+                return a;
+            case "-":
+                for (int i = 0; i < da.length; i++)
+                    da[i] -= y;
+                return a;
+            case "*":
+                for (int i = 0; i < da.length; i++)
+                    da[i] *= y;
+                return a;
+            case "/":
+                for (int i = 0; i < da.length; i++)
+                    da[i] /= y;
+                return a;
+            case "neg":
+                for (int i = 0; i < da.length; i++)
+                    da[i] = -da[i];
+                return a;
+            case "abs":
+                for (int i = 0; i < da.length; i++)
+                    da[i] = Math.abs(da[i]);
+                return a;
+            case "sqrt":
+                for (int i = 0; i < da.length; i++)
+                    da[i] = Math.sqrt(da[i]);
+                return a;
+            case "exp":
+                for (int i = 0; i < da.length; i++)
+                    da[i] = Math.exp(da[i]);
+                return a;
+            case "log":
+                for (int i = 0; i < da.length; i++)
+                    da[i] = Math.log(da[i]);
+                return a;
+            default:
+                break;
+            }
+        }
+        throw new EvalException ("unknown array operation", op);
+    }
+
+    /** (arr-sort a) 昇順に整列して a を返す。*/
+    static Object sort(Object a) {
+        check(a);
+        if (a instanceof long[])
+            Arrays.sort((long[]) a);
+        else
+            Arrays.sort((double[]) a);
+        return a;
+    }
+
+    /** (arr-min a) 最小の要素。空ならば nil */
+    static Object min(Object a) {
+        check(a);
+        if (length(a) == 0)
+            return null;
+        if (a instanceof long[]) {
+            long[] la = (long[]) a;
+            long m = la[0];
+            for (int i = 1; i < la.length; i++)
+                m = Math.min(m, la[i]);
+            return BuiltinMath.reg(m);
+        } else {
+            double[] da = (double[]) a;
+            double m = da[0];
+            for (int i = 1; i < da.length; i++)
+                m = Math.min(m, da[i]);
+            return m;
+        }
+    }
+
+    /** (arr-max a) 最大の要素。空ならば nil */
+    static Object max(Object a) {
+        check(a);
+        if (length(a) == 0)
+            return null;
+        if (a instanceof long[]) {
+            long[] la = (long[]) a;
+            long m = la[0];
+            for (int i = 1; i < la.length; i++)
+                m = Math.max(m, la[i]);
+            return BuiltinMath.reg(m);
+        } else {
+            double[] da = (double[]) a;
+            double m = da[0];
+            for (int i = 1; i < da.length; i++)
+                m = Math.max(m, da[i]);
+            return m;
+        }
+    }
+} // BuiltinArray
@@ -1,4 +1,4 @@
-// H22.10.01/R02.04.29 (鈴)
+// H22.10.01/R08.10.18 (鈴)
 package arc;
 
 import java.math.BigInteger;
@@ -13,107 +13,109 @@ public class BuiltinMath
     /** このクラスはインスタンスを作らない。*/
     private BuiltinMath () {}
 
-    /* 整数は Integer か BigInteger のどちらかであることを仮定する。
-       Long は Integer の桁あふれを防ぐため過渡的にだけ使う。*/
+    /* 整数は Integer, Long, BigInteger のいずれかであることを仮定する。
+       値が int に収まるならば Integer，long に収まるならば Long，
+       さもなければ BigInteger で表す (reg 参照)。
+       Integer と Long をあわせて fixnum と呼ぶ。fixnum どうしの演算は
+       long で行い，桁あふれしたときだけ BigInteger で計算し直す。
+       桁あふれは Math.addExact 等の例外ではなく値から判定する。
+       例外はスタックトレースを作るから，多倍長整数の計算が続くと
+       それだけで何倍も遅くなる。*/
+
+    // x は Integer か Long か？
+    private static boolean isFixnum(Object x) {
+        return x instanceof Integer || x instanceof Long;
+    }
+
+    // 整数 x を BigInteger にする。
+    private static BigInteger big(Number x) {
+        return (x instanceof BigInteger) ?
+            (BigInteger) x : BigInteger.valueOf(x.longValue());
+    }
 
     /** 整数加算 */
     public static Number intAdd(Number x, Number y) {
-        if (x instanceof Integer)
-            if (y instanceof Integer)
-                return reg(x.longValue() + y.longValue());
-            else
-                x = BigInteger.valueOf(x.longValue());
-        else if (y instanceof Integer)
-            y = BigInteger.valueOf(y.longValue());
-        return reg(((BigInteger) x).add((BigInteger) y));
+        if (isFixnum(x) && isFixnum(y)) {
+            long a = x.longValue();
+            long b = y.longValue();
+            long r = a + b;
+            if (((a ^ r) & (b ^ r)) >= 0) // 結果の符号が a, b と矛盾しない
+                return reg(r);
+        }
+        return reg(big(x).add(big(y)));
     }
 
     /** 整数減算 */
     public static Number intSubtract(Number x, Number y) {
-        if (x instanceof Integer)
-            if (y instanceof Integer)
-                return reg(x.longValue() - y.longValue());
-            else
-                x = BigInteger.valueOf(x.longValue());
-        else if (y instanceof Integer)
-            y = BigInteger.valueOf(y.longValue());
-        return reg(((BigInteger) x).subtract((BigInteger) y));
+        if (isFixnum(x) && isFixnum(y)) {
+            long a = x.longValue();
+            long b = y.longValue();
+            long r = a - b;
+            if (((a ^ b) & (a ^ r)) >= 0)
+                return reg(r);
+        }
+        return reg(big(x).subtract(big(y)));
     }
 
     /** 整数乗算 */
     public static Number intMultiply(Number x, Number y) {
-        if (x instanceof Integer)
-            if (y instanceof Integer)
-                return reg(x.longValue() * y.longValue());
-            else
-                x = BigInteger.valueOf(x.longValue());
-        else if (y instanceof Integer)
-            y = BigInteger.valueOf(y.longValue());
-        return reg(((BigInteger) x).multiply((BigInteger) y));
+        if (isFixnum(x) && isFixnum(y)) {
+            long a = x.longValue();
+            long b = y.longValue();
+            long r = a * b;
+            // 128 ビットの積の上位が下位の符号の拡張ならば桁あふれしない。
+            if (Math.multiplyHigh(a, b) == (r >> 63))
+                return reg(r);
+        }
+        return reg(big(x).multiply(big(y)));
     }
 
     /** 整数除算 */
     public static Number intDivide(Number x, Number y) {
-        if (x instanceof Integer)
-            if (y instanceof Integer) // 注: 8bit演算で -128 / -1  は？
-                return reg(x.longValue() / y.longValue());
-            else
-                x = BigInteger.valueOf(x.longValue());
-        else if (y instanceof Integer)
-            y = BigInteger.valueOf(y.longValue());
-        return reg(((BigInteger) x).divide((BigInteger) y));
+        if (isFixnum(x) && isFixnum(y)) {
+            long a = x.longValue();
+            long b = y.longValue();
+            if (! (a == Long.MIN_VALUE && b == -1)) // 唯一の桁あふれ
+                return reg(a / b);
+        }
+        return reg(big(x).divide(big(y)));
     }
 
     /** 整数剰余 */
     public static Number intRemainder(Number x, Number y) {
-        if (x instanceof Integer)
-            if (y instanceof Integer)
-                return x.intValue() % y.intValue();
-            else
-                x = BigInteger.valueOf(x.longValue());
-        else if (y instanceof Integer)
-            y = BigInteger.valueOf(y.longValue());
-        return reg(((BigInteger) x).remainder((BigInteger) y));
+        if (isFixnum(x) && isFixnum(y))
+            return reg(x.longValue() % y.longValue());
+        return reg(big(x).remainder(big(y)));
     }
 
     /** 整数符号反転 */
     public static Number intNegate(Number x) {
-        if (x instanceof Integer)
+        if (isFixnum(x) && x.longValue() != Long.MIN_VALUE)
             return reg(- x.longValue());
-        else
-            return reg(((BigInteger) x).negate());
+        return reg(big(x).negate());
     }
 
     /** 最大公約数 */
     public static Number intGCD(Number x, Number y) {
-        if (x instanceof Integer)
-            if (y instanceof Integer) {
-                int a = x.intValue();
-                int b = y.intValue();
-                while (b != 0) {
-                    int c = a % b;
-                    a = b;
-                    b = c;
-                }
-                return (a < 0) ? -a : a;
-            } else {
-                x = BigInteger.valueOf(x.longValue());
+        if (isFixnum(x) && isFixnum(y)) {
+            long a = x.longValue();
+            long b = y.longValue();
+            while (b != 0) {
+                long c = a % b;
+                a = b;
+                b = c;
             }
-        else if (y instanceof Integer)
-            y = BigInteger.valueOf(y.longValue());
-        return reg(((BigInteger) x).gcd((BigInteger) y));
+            if (a != Long.MIN_VALUE)
+                return reg((a < 0) ? -a : a);
+        }
+        return reg(big(x).gcd(big(y)));
     }
 
     /** 整数比較 */
     public static int intCompare(Number x, Number y) {
-        if (x instanceof Integer)
-            if (y instanceof Integer)
-                return ((Integer) x).compareTo((Integer) y);
-            else
-                x = BigInteger.valueOf(x.longValue());
-        else if (y instanceof Integer)
-            y = BigInteger.valueOf(y.longValue());
-        return ((BigInteger) x).compareTo((BigInteger) y);
+        if (isFixnum(x) && isFixnum(y))
+            return Long.compare(x.longValue(), y.longValue());
+        return big(x).compareTo(big(y));
     }
 
     /** 整数の平方根。結果はできれば整数だが Double かもしれない。*/
@@ -149,6 +151,68 @@ public class BuiltinMath
         return x;
     }
 
+    /* 以下の *2 は２引数の +, -, *, <, > の Intrinsic.Binary である。
+       fixnum どうしと Double どうしだけを扱い，それ以外の引数に対しては
+       Intrinsic.GENERIC を返す。Integer どうしの演算結果は long で求めて
+       から reg で正規化するから，int を超えれば Long になる。*/
+
+    /** ２引数の算術加算 */
+    static Object add2(Object x, Object y) {
+        if (x instanceof Integer && y instanceof Integer)
+            return reg((long) (Integer) x + (Integer) y);
+        if (isFixnum(x) && isFixnum(y))
+            return intAdd((Number) x, (Number) y);
+        if (x instanceof Double && y instanceof Double)
+            return (Double) x + (Double) y;
+        return Intrinsic.GENERIC;
+    }
+
+    /** ２引数の算術減算 */
+    static Object subtract2(Object x, Object y) {
+        if (x instanceof Integer && y instanceof Integer)
+            return reg((long) (Integer) x - (Integer) y);
+        if (isFixnum(x) && isFixnum(y))
+            return intSubtract((Number) x, (Number) y);
+        if (x instanceof Double && y instanceof Double)
+            return (Double) x - (Double) y;
+        return Intrinsic.GENERIC;
+    }
+
+    /** ２引数の算術乗算 */
+    static Object multiply2(Object x, Object y) {
+        if (x instanceof Integer && y instanceof Integer)
+            return reg((long) (Integer) x * (Integer) y);
+        if (isFixnum(x) && isFixnum(y))
+            return intMultiply((Number) x, (Number) y);
+        if (x instanceof Double && y instanceof Double)
+            return (Double) x * (Double) y;
+        return Intrinsic.GENERIC;
+    }
+
+    /** ２引数の算術比較 (<) */
+    static Object lessThan2(Object x, Object y) {
+        if (x instanceof Integer && y instanceof Integer)
+            return ((Integer) x < (Integer) y) ? LL.S_T : null;
+        if (isFixnum(x) && isFixnum(y))
+            return (((Number) x).longValue() < ((Number) y).longValue()) ?
+                LL.S_T : null;
+        if (x instanceof Double && y instanceof Double)
+            return ((Double) x < (Double) y) ? LL.S_T : null;
+        return Intrinsic.GENERIC;
+    }
+
+    /** ２引数の算術比較 (>) */
+    static Object greaterThan2(Object x, Object y) {
+        if (x instanceof Integer && y instanceof Integer)
+            return ((Integer) x > (Integer) y) ? LL.S_T : null;
+        if (isFixnum(x) && isFixnum(y))
+            return (((Number) x).longValue() > ((Number) y).longValue()) ?
+                LL.S_T : null;
+        if (x instanceof Double && y instanceof Double)
+            return ((Double) x > (Double) y) ? LL.S_T : null;
+        return Intrinsic.GENERIC;
+    }
+
     /** 算術乗算。(* 2 3) ⇒ 6; (*) ⇒ 1
      */
     public static Number multiply(Cell j) {
@@ -324,17 +388,20 @@ public class BuiltinMath
     private static final Number NEG_INF = Rational.result(-1, 0); // -1/0
 
     /** 正規化した数のインスタンスを得る。
-     * long 値をできれば int 値に，できなければ BigInteger 値にする。
+     * long 値をできれば int 値に，できなければ Long 値にする。
      */
     public static Number reg(long x) {
         int i = (int) x;
-        return (i == x) ? i : BigInteger.valueOf(x);
+        return (i == x) ? (Number) i : (Number) x;
     }
 
     /** 正規化した数のインスタンスを得る。
-     * BigInteger 値をできれば int 値に，できなければそのままにする。
+     * BigInteger 値をできれば int 値に，それができなければ long 値に，
+     * どちらもできなければそのままにする。
      */
     public static Number reg(BigInteger x) {
-        return (x.bitLength() < 32) ? x.intValue() : x;
+        int n = x.bitLength();
+        return (n < 32) ? (Number) x.intValue() :
+            (n < 64) ? (Number) x.longValue() : x;
     }
 } // BuiltinMath
@@ -0,0 +1,165 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/** Builtins のためのデータ並列関数集
+ * (pmap f xs), (pkeep f xs), (preduce f xs) はリストまたは vec を
+ * 連続した区間に分け，各区間を ForkJoinPool の共通プールで並列に処理する。
+ * 各区間の処理はそれぞれ自分の Eval で，共有のインタープリタに対して
+ * 関数を呼び出す。結果の順序は元の並びの順序に従い，例外が起きたら
+ * 並びの上で最初の区間の例外を投げる。
+ * <p>
+ * 要素数が THRESHOLD 未満ならば，分けずに呼出し元のスレッドで処理する。
+ * どちらの場合も関数は別の Eval で呼び出されるから，その中で捕捉した
+ * 継続でこの呼出しの外へ脱出することはできない。
+ * @see Builtins
+ */
+public class BuiltinParallel extends BuiltinUtil
+{
+    /** このクラスはインスタンスを作らない。*/
+    private BuiltinParallel () {}
+
+    /** これより短い並びは分けずに処理する。*/
+    static final int THRESHOLD = 64;
+
+    // 一つのスレッドあたりの区間の数 (負荷の偏りをならす)
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    // 区間 [lo, hi) を処理する関数
+    @FunctionalInterface private interface Range {
+        Object call(int lo, int hi);
+    }
+
+    /** (pmap f xs) */
+    static Object map(Object f, Object seq, Eval eval) {
+        Object[] xs = toArray(seq);
+        var ys = new Object[xs.length];
+        IInterp interp = eval.interp;
+        Cell env = eval.env;
+        run(xs.length, (lo, hi)-> {
+                for (int i = lo; i < hi; i++)
+                    ys[i] = call(interp, env, f, xs[i]);
+                return null;
+            });
+        return rebuild(seq, ys, ys.length);
+    }
+
+    /** (pkeep f xs) f が関数でなければ f と is である要素を残す。*/
+    static Object keep(Object f, Object seq, Eval eval) {
+        Object[] xs = toArray(seq);
+        var kept = new boolean[xs.length];
+        IInterp interp = eval.interp;
+        Cell env = eval.env;
+        run(xs.length, (lo, hi)-> {
+                for (int i = lo; i < hi; i++)
+                    kept[i] = (f instanceof Function) ?
+                        call(interp, env, f, xs[i]) != null :
+                        isSame(xs[i], f);
+                return null;
+            });
+        int n = 0;
+        for (int i = 0; i < xs.length; i++)
+            if (kept[i])
+                xs[n++] = xs[i];
+        return rebuild(seq, xs, n);
+    }
+
+    /** (preduce f xs) f は結合的でなければならない。
+     * 各区間を左から畳み込み，その結果をさらに左から畳み込む。
+     * 要素が二つ未満のときは arc.arc の reduce と同じく (f) または
+     * (f x) を返す。
+     */
+    static Object reduce(Object f, Object seq, Eval eval) {
+        Object[] xs = toArray(seq);
+        IInterp interp = eval.interp;
+        Cell env = eval.env;
+        if (xs.length < 2)
+            return interp.eval(new Cell(f, quoted(xs, 0, xs.length)), env);
+        List<Object> partials = run(xs.length, (lo, hi)-> {
+                Object acc = xs[lo];
+                for (int i = lo + 1; i < hi; i++)
+                    acc = call(interp, env, f, acc, xs[i]);
+                return acc;
+            });
+        Object acc = partials.get(0);
+        for (int i = 1; i < partials.size(); i++)
+            acc = call(interp, env, f, acc, partials.get(i));
+        return acc;
+    }
+
+    // 長さ n の並びを区間に分けて range を並列に呼び出し，その値を
+    // 区間の順に並べて返す。
+    private static List<Object> run(int n, Range range) {
+        var results = new ArrayList<Object> ();
+        if (n < THRESHOLD) {
+            results.add(range.call(0, n));
+            return results;
+        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int chunks = Math.min(pool.getParallelism() * CHUNKS_PER_THREAD,
+                              n / (THRESHOLD / 2));
+        chunks = Math.max(chunks, 1);
+        var futures = new ArrayList<Future<Object>> (chunks);
+        for (int c = 0; c < chunks; c++) {
+            int lo = (int) ((long) n * c / chunks);
+            int hi = (int) ((long) n * (c + 1) / chunks);
+            futures.add(pool.submit(()-> range.call(lo, hi)));
+        }
+        try {
+            for (Future<Object> f: futures)
+                results.add(f.get());
+        } catch (ExecutionException ex) {
+            for (Future<Object> f: futures)
+                f.cancel(false);
+            throw Task.rethrown(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new EvalException ("interrupted", ex);
+        }
+        return results;
+    }
+
+    // (f 'x1 'x2 ...) を新しい Eval で評価する。
+    private static Object call(IInterp interp, Cell env,
+                               Object f, Object... args) {
+        return interp.eval(new Cell(f, quoted(args, 0, args.length)), env);
+    }
+
+    // args[lo..hi) の各要素を (quote x) にしたリスト
+    private static Cell quoted(Object[] args, int lo, int hi) {
+        Cell result = null;
+        for (int i = hi - 1; i >= lo; i--)
+            result = new Cell(LL.list(LL.S_QUOTE, args[i]), result);
+        return result;
+    }
+
+    private static Object[] toArray(Object seq) {
+        if (seq == null)
+            return new Object[0];
+        var xs = new ArrayList<Object> ();
+        if (seq instanceof Cell || seq instanceof Vec)
+            for (Object x: (Iterable<?>) seq)
+                xs.add(x);
+        else
+            throw new EvalException ("list or vec expected", seq);
+        return xs.toArray();
+    }
+
+    // xs の先頭 n 個から seq と同じ型の並びを作る。
+    private static Object rebuild(Object seq, Object[] xs, int n) {
+        if (seq instanceof Vec) {
+            var v = new Object[n];
+            System.arraycopy(xs, 0, v, 0, n);
+            return new Vec (v);
+        }
+        Cell result = null;
+        for (int i = n - 1; i >= 0; i--)
+            result = new Cell(xs[i], result);
+        return result;
+    }
+} // BuiltinParallel
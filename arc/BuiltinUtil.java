@@ -1,4 +1,4 @@
-// H22.10.01/R02.05.01 (鈴)
+// H22.10.01/R08.10.18 (鈴)
 package arc;
 
 import java.math.BigInteger;
@@ -12,6 +12,8 @@ import java.util.NoSuchElementException;
 class BuiltinUtil
 {
     // 二つの引数が同じ整数，実数，文字または文字列または参照か？
+    // 整数は BuiltinMath.reg で正規化されているから，Integer と Long と
+    // BigInteger の間で値が等しくなることはない。
     static boolean isSame(Object a, Object b) {
         if (a == b)             // 同じ参照または nil か？
             return true;
@@ -130,6 +132,10 @@ class BuiltinUtil
             return i;
         } else if (x instanceof char[]) {
             return ((char[]) x).length;
+        } else if (x instanceof Vec) {
+            return ((Vec) x).size();
+        } else if (BuiltinArray.isArray(x)) {
+            return BuiltinArray.length(x);
         } else {
             return ((Table) x).size();
         }
@@ -179,6 +185,12 @@ class BuiltinUtil
         return s.toCharArray();
     }
 
+    private static char[] longToString(long i, Object option) {
+        int radix = (option == null) ? 10 : (Integer) option;
+        String s = Long.toString(i, radix);
+        return s.toCharArray();
+    }
+
     private static char[] bignumToString(BigInteger i, Object option) {
         int radix = (option == null) ? 10 : (Integer) option;
         String s = i.toString(radix);
@@ -219,6 +231,12 @@ class BuiltinUtil
                 return null;
             else if (typ == LL.S_STRING)
                 return new char[0];
+            else if (typ == LL.S_VEC)
+                return new Vec (0, null);
+            else if (typ == LL.S_LONGS)
+                return new long[0];
+            else if (typ == LL.S_DOUBLES)
+                return new double[0];
         }
         else if (x instanceof Cell) {
             Cell j = (Cell) x;
@@ -226,6 +244,40 @@ class BuiltinUtil
                 return j;
             else if (typ == LL.S_STRING)
                 return consToString(j);
+            else if (typ == LL.S_VEC)
+                return Vec.of(j);
+            else if (typ == LL.S_LONGS)
+                return BuiltinArray.toLongs(j);
+            else if (typ == LL.S_DOUBLES)
+                return BuiltinArray.toDoubles(j);
+        }
+        else if (x instanceof Vec) {
+            Vec v = (Vec) x;
+            if (typ == LL.S_VEC)
+                return v;
+            else if (typ == LL.S_CONS)
+                return v.toList();
+            else if (typ == LL.S_STRING)
+                return consToString(v.toList());
+            else if (typ == LL.S_LONGS)
+                return BuiltinArray.toLongs(v);
+            else if (typ == LL.S_DOUBLES)
+                return BuiltinArray.toDoubles(v);
+        }
+        else if (BuiltinArray.isArray(x)) {
+            if (typ == LL.S_LONGS && x instanceof long[])
+                return x;
+            else if (typ == LL.S_DOUBLES && x instanceof double[])
+                return x;
+            Vec v = BuiltinArray.toVec(x);
+            if (typ == LL.S_VEC)
+                return v;
+            else if (typ == LL.S_CONS)
+                return v.toList();
+            else if (typ == LL.S_LONGS)
+                return BuiltinArray.toLongs(v);
+            else if (typ == LL.S_DOUBLES)
+                return BuiltinArray.toDoubles(v);
         }
         else if (x instanceof Symbol) {
             Symbol s = (Symbol) x;
@@ -247,6 +299,8 @@ class BuiltinUtil
             char[] s = (char[]) x;
             if (typ == LL.S_CONS)
                 return LL.mapcar(iterableChars(s), null);
+            else if (typ == LL.S_VEC)
+                return Vec.of(LL.mapcar(iterableChars(s), null));
             else if (typ == LL.S_SYM) {
                 if (s.length == 0) {
                     return null;
@@ -273,6 +327,13 @@ class BuiltinUtil
             else if (typ == LL.S_INT || typ == LL.S_NUM)
                 return i;
         }
+        else if (x instanceof Long) {
+            long i = (Long) x;
+            if (typ == LL.S_STRING)
+                return longToString(i, option);
+            else if (typ == LL.S_INT || typ == LL.S_NUM)
+                return i;
+        }
         else if (x instanceof BigInteger) {
             BigInteger i = (BigInteger) x;
             if (typ == LL.S_STRING)
@@ -290,6 +351,9 @@ class BuiltinUtil
         else if (x instanceof Arg) {
             return coerce(((Arg) x).symbol, typ, option);
         }
+        else if (x instanceof GlobalRef) {
+            return coerce(((GlobalRef) x).symbol, typ, option);
+        }
         throw new UnsupportedOperationException ();
     }
 } // BuiltinUtil
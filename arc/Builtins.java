@@ -1,4 +1,4 @@
-// H22.09.30/R02.05.05 (鈴)
+// H22.09.30/R08.10.18 (鈴)
 package arc;
 
 import java.io.File;
@@ -13,7 +13,7 @@ import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ExecutorService;
 
 /** (outstring) を実装するクラス
  */
@@ -39,25 +39,6 @@ public class Builtins extends BuiltinUtil
     /** このクラスはインスタンスを作らない。*/
     private Builtins () {}
 
-    /** atomic-invoke のための排他ロック */
-    static final ReentrantLock LOCK = new ReentrantLock();
-
-    /** atomic-invoke の排他ロックのための式 */
-    static final Cell DO_LOCK =
-        new Cell(c("_lock", 0, null,
-                   (a)-> {
-                       LOCK.lock();
-                       return null;
-                   }), null);
-
-    /** atomic-invoke の排他ロック解除のための式 */
-    static final Cell DO_UNLOCK =
-        new Cell(c("_unlock", 0, null,
-                   (a)-> {
-                       LOCK.unlock();
-                       return null;
-                   }), null);
-
     /** call-w/stdin, call-w/stdout のための隠し組み込み関数 */
     static final Intrinsic PUTSYMVAL =
         c("_putsymval", 2, null,
@@ -123,6 +104,12 @@ public class Builtins extends BuiltinUtil
                               name, doc, null, body2);
     }
 
+    // 組込み関数 f に２引数の呼出しに特化した本体 binary を加える。
+    private static Intrinsic c2(Intrinsic f, Intrinsic.Binary binary) {
+        f.binary = binary;
+        return f;
+    }
+
     /** 組込み関数からなる配列 */
     public static final Intrinsic[] FUNCTIONS = new Intrinsic[] {
         c("car", 1, "(car '(a b c)) => a; (car nil) => nil",
@@ -150,12 +137,19 @@ public class Builtins extends BuiltinUtil
                   (x instanceof Character) ? LL.S_CHAR :
                   (x instanceof char[]) ? LL.S_STRING :
                   (x instanceof Integer) ? LL.S_INT :
+                  (x instanceof Long) ? LL.S_INT :
                   (x instanceof BigInteger) ? LL.S_INT :
                   (x instanceof Number) ? LL.S_NUM :
                   (x instanceof PrintWriter) ? LL.S_OUTPUT :
                   (x instanceof CharEnumerator) ? LL.S_INPUT :
                   (x instanceof Table) ? LL.S_TABLE :
+                  (x instanceof Vec) ? LL.S_VEC :
+                  (x instanceof long[]) ? LL.S_LONGS :
+                  (x instanceof double[]) ? LL.S_DOUBLES :
+                  (x instanceof Task) ? LL.S_TASK :
+                  (x instanceof Chan) ? LL.S_CHAN :
                   (x instanceof Arg) ? LL.S_SYM : // XXX
+                  (x instanceof GlobalRef) ? LL.S_SYM : // XXX
                   x.getClass();                   // XXX
           }),
           
@@ -173,6 +167,58 @@ public class Builtins extends BuiltinUtil
         c("table", 0, "(table) =>  a new table",
           (a)-> new Table ()),
 
+        c("isotable", 0, new Object[] { null }, false,
+          "(isotable [limit]) => キーを iso で比較する新しい表; " +
+          "limit 個を超えたら最も長く使われていないエントリを捨てる",
+          (a)-> new Table (true, (a[0] == null) ? 0 : (Integer) a[0])),
+
+        c("ctable", 0, "(ctable) => 並行に使える新しい表",
+          (a)-> new CTable ()),
+
+        c("tupdate", 3,
+          "(tupdate t k f): ctable t の k の値を (f 値) に不可分に更新する",
+          (a, eval)-> ((CTable) a[0]).update(a[1], a[2], eval)),
+
+        c("tput-if-absent", 3,
+          "(tput-if-absent t k v) => t に k がなければ v を格納; k の値",
+          (a)-> ((CTable) a[0]).putIfAbsent(a[1], a[2])),
+
+        c("tincr", 2, new Object[] { 1 }, false,
+          "(tincr t k [n]) => ctable t の k の値 (既定 0) に n を不可分に加えた値",
+          (a)-> ((CTable) a[0]).increment(a[1], a[2])),
+
+        c("cache-table", 0, null, true,
+          "(cache-table ['max n] ['ttl-ms n]) => 上限 n 個の LRU で，" +
+          "各エントリが n ミリ秒で無効になる新しい表",
+          (a)-> Cache.of((Cell) a[0])),
+
+        c("cache-get", 3,
+          "(cache-get c key loader) => c の key の値; なければ " +
+          "(loader key) を一度だけ呼んで格納する",
+          (a, eval)-> {
+              var cache = (Cache) a[0];
+              Object key = a[1];
+              Object x = cache.lookupOrBegin(key);
+              if (! (x instanceof Cache.Load))
+                  return x;
+              var load = (Cache.Load) x;
+              var abort = c("_cache-abort", 0, null,
+                            (b)-> {
+                                cache.abort(key, load);
+                                return null;
+                            });
+              eval.k.pushWind(null, new Cell(abort, null));
+              return eval.callBack(a[2], new Cell(key, null), (v, ev)-> {
+                      cache.finish(key, load, v);
+                      return v;
+                  });
+          }),
+
+        c("cache-stats", 1,
+          "(cache-stats c) => hits, misses, evictions, loads, " +
+          "load-time-ms の表",
+          (a)-> ((Cache) a[0]).stats()),
+
         c("newstring", 1, new Object[] { '\0' }, false,
           "(newstring length [char]) => a new string",
           (a)-> {
@@ -184,6 +230,51 @@ public class Builtins extends BuiltinUtil
               return s;
           }),
 
+        c("vec", 0, null, true, "(vec x ...) => #(x ...)",
+          (a)-> Vec.of((Cell) a[0])),
+
+        c("newvec", 1, new Object[] { null }, false,
+          "(newvec length [x]) => a new vec",
+          (a)-> new Vec ((Integer) a[0], a[1])),
+
+        c("vec-push", 2, "(vec-push v x): v の末尾に x を加え，v を返す",
+          (a)-> {
+              var v = (Vec) a[0];
+              v.push(a[1]);
+              return v;
+          }),
+
+        c("newlongs", 1, new Object[] { null }, false,
+          "(newlongs length [x]) => a new long array",
+          (a)-> BuiltinArray.newLongs((Integer) a[0], a[1])),
+
+        c("newdoubles", 1, new Object[] { null }, false,
+          "(newdoubles length [x]) => a new double array",
+          (a)-> BuiltinArray.newDoubles((Integer) a[0], a[1])),
+
+        c("arr-sum", 1, "(arr-sum a) => 数値配列の要素の総和",
+          (a)-> BuiltinArray.sum(a[0])),
+
+        c("arr-dot", 2, "(arr-dot a b) => 数値配列の内積",
+          (a)-> BuiltinArray.dot(a[0], a[1])),
+
+        c("arr-scale", 2, "(arr-scale a k): 各要素を k 倍して a を返す",
+          (a)-> BuiltinArray.map(a[0], Symbol.of("*"), a[1])),
+
+        c("arr-map", 2, new Object[] { null }, false,
+          "(arr-map a 'op [k]): 各要素に op (+ - * / neg abs sqrt exp log)" +
+          " を施して a を返す",
+          (a)-> BuiltinArray.map(a[0], (Symbol) a[1], a[2])),
+
+        c("arr-sort", 1, "(arr-sort a): 昇順に整列して a を返す",
+          (a)-> BuiltinArray.sort(a[0])),
+
+        c("arr-min", 1, "(arr-min a) => 最小の要素",
+          (a)-> BuiltinArray.min(a[0])),
+
+        c("arr-max", 1, "(arr-max a) => 最大の要素",
+          (a)-> BuiltinArray.max(a[0])),
+
         c("stdin", 0, "(stdin) => input-port",
           (a, eval)-> eval.interp.getReader()),
 
@@ -325,27 +416,29 @@ public class Builtins extends BuiltinUtil
               }
           }),
 
-        c("+", 0, null, true,
-          "(算術加算/文字列連結/リスト連結 (+ ...); (+) => 0",
-          (a)-> {
-              Cell xs = (Cell) a[0];
-              if (xs != null) {
-                  Object x = xs.car;
-                  if (x == null || x instanceof Cell)
-                      return appendLists(xs);
-                  else if (x instanceof char[])
-                      return appendStrings(xs);
-              }
-              return BuiltinMath.add(xs);
-          }),
+        c2(c("+", 0, null, true,
+             "(算術加算/文字列連結/リスト連結 (+ ...); (+) => 0",
+             (a)-> {
+                 Cell xs = (Cell) a[0];
+                 if (xs != null) {
+                     Object x = xs.car;
+                     if (x == null || x instanceof Cell)
+                         return appendLists(xs);
+                     else if (x instanceof char[])
+                         return appendStrings(xs);
+                 }
+                 return BuiltinMath.add(xs);
+             }),
+           BuiltinMath::add2),
 
         c(LL.S_APPEND.name, 0, null, true,
           "(" + LL.S_APPEND + " '(a b) '(c d) ...) => (a b c d ...)",
           (a)-> appendLists((Cell) a[0])),
 
-        c("*", 0, null, true,
-          "算術乗算 (* ...); (* 2 3) => 6; (*) => 1",
-          (a)-> BuiltinMath.multiply((Cell) a[0])),
+        c2(c("*", 0, null, true,
+             "算術乗算 (* ...); (* 2 3) => 6; (*) => 1",
+             (a)-> BuiltinMath.multiply((Cell) a[0])),
+           BuiltinMath::multiply2),
 
         c("/", 1, null, true,
           "実数除算 (/ x ...); (/ 6) => 1/6",
@@ -364,30 +457,33 @@ public class Builtins extends BuiltinUtil
         c("quotient", 2, "整数除算 (quotient x y); (quotient 6 5) => 1",
           (a)-> BuiltinMath.divideInt((Number) a[0], (Number) a[1])),
 
-        c("-", 1, null, true, 
-          "算術減算 (- x ...); (- 10) => -10; (- 10 2) => 8",
-          (a)-> {
-              Number x = (Number) a[0];
-              Cell yy = (Cell) a[1];
-              return BuiltinMath.subtract(x, yy);
-          }),
+        c2(c("-", 1, null, true, 
+             "算術減算 (- x ...); (- 10) => -10; (- 10 2) => 8",
+             (a)-> {
+                 Number x = (Number) a[0];
+                 Cell yy = (Cell) a[1];
+                 return BuiltinMath.subtract(x, yy);
+             }),
+           BuiltinMath::subtract2),
 
         c("mod", 2, "Modulo (mod a b); (mod 5 7) => 5; (mod 13 -4) => -3",
           (a)-> BuiltinMath.modulo((Number) a[0], (Number) a[1])),
 
-        c("<", 2, null, true,
-          "算術/文字列/シンボル/文字比較 (< a b ...)",
-          (a)-> {
-              Cell b = new Cell (a[1], a[2]);
-              return lessThan(a[0], b) ? LL.S_T : null;
-          }),
-
-        c(">", 2, null, true,
-          "算術/文字列/シンボル/文字比較 (> a b ...)",
-          (a)-> {
-              Cell b = new Cell (a[1], a[2]);
-              return greaterThan(a[0], b) ? LL.S_T : null;
-          }),
+        c2(c("<", 2, null, true,
+             "算術/文字列/シンボル/文字比較 (< a b ...)",
+             (a)-> {
+                 Cell b = new Cell (a[1], a[2]);
+                 return lessThan(a[0], b) ? LL.S_T : null;
+             }),
+           BuiltinMath::lessThan2),
+
+        c2(c(">", 2, null, true,
+             "算術/文字列/シンボル/文字比較 (> a b ...)",
+             (a)-> {
+                 Cell b = new Cell (a[1], a[2]);
+                 return greaterThan(a[0], b) ? LL.S_T : null;
+             }),
+           BuiltinMath::greaterThan2),
 
         c("trunc", 1, "(trunc 数) => 数をゼロの方向へ丸めた整数",
           (a)-> BuiltinMath.trunc((Number) a[0])),
@@ -426,6 +522,28 @@ public class Builtins extends BuiltinUtil
                   throw new EvalException (msg, arg);
           }),
 
+        // 継続に目印を積んで f を呼び出す。f の評価中にエラーが起きたら
+        // Eval#evaluate が継続を目印まで戻して errfn を呼び出させる。
+        c("on-err", 2,
+          "(on-err errfn f): try {(f)} catch (ex) {(errfn ex)}",
+          (a, eval)-> {
+              eval.k.pushRestoreEnv(eval.env);
+              eval.k.pushHandler(a[0]);
+              eval.k.push(ContOp.EVAL_VAL, new Cell(a[1], null));
+              return null;
+          }),
+
+        c("details", 1, "(details ex) => on-err が捕えた例外 ex の説明",
+          (a)-> {
+              // 組込み関数による包装を剥いで，元の例外の説明を使う。
+              var origin = (Throwable) a[0];
+              while (origin.getCause() != null)
+                  origin = origin.getCause();
+              String msg = (origin instanceof EvalException) ?
+                  origin.getMessage() : origin.toString();
+              return msg.toCharArray();
+          }),
+
         c("protect", 2, "(protect during after): try {during} finally {after}",
           (a, eval)-> {
               eval.k.pushWind(null, new Cell(a[1], null));
@@ -436,25 +554,83 @@ public class Builtins extends BuiltinUtil
         // 引数の関数を評価しているときだけ排他ロックをかける。
         c("atomic-invoke", 1, "(atomic-invoke nullary-function)",
           (a, eval)-> {
-              LOCK.lock();
-              eval.k.pushWind(DO_LOCK, DO_UNLOCK);
+              Locks.lock(Locks.GLOBAL);
+              eval.k.pushWind(Locks.DO_LOCK[Locks.GLOBAL],
+                              Locks.DO_UNLOCK[Locks.GLOBAL]);
               eval.k.push(ContOp.EVAL_VAL, new Cell(a[0], null));
               return null;
           }),
 
-        c("new-thread", 1, "(new-thread nullary-function)",
+        // x に対するロックだけをかける。x は同一性で区別される。
+        // 関数の中の = や push 等は従来どおり atomic に展開されるから，
+        // 全体のロックも重ねてかける。
+        c("atomic-on-invoke", 2,
+          "(atomic-on-invoke x nullary-function): x に対するロックだけを" +
+          "かけて呼び出す。ただし中の = や push 等は atomic として全体の" +
+          "ロックもかける。ロックの待ちが輪になったらエラーとなる",
           (a, eval)-> {
-              var fn = a[0];
-              IInterp interp = eval.interp;
-              Cell env = eval.env;
-              Thread th = new Thread () {
-                      public void run() {
-                          interp.eval(new Cell(fn, null), env);
-                      }
-                  };
-              th.start();
-              return th;
+              int i = Locks.indexOf(a[0]);
+              Locks.lock(i);
+              eval.k.pushWind(Locks.DO_LOCK[i], Locks.DO_UNLOCK[i]);
+              eval.k.push(ContOp.EVAL_VAL, new Cell(a[1], null));
+              return null;
+          }),
+
+        c("lock-stats", 0,
+          "(lock-stats) => acquisitions, contentions, hold-time-ms の表",
+          (a)-> Locks.stats()),
+
+        c("new-thread", 1, "(new-thread nullary-function) => task",
+          (a, eval)-> Task.spawn(a[0], eval, Task.SPAWNER, true)),
+
+        c("spawn", 1, new Object[] { null }, false,
+          "(spawn nullary-function [pool]) => task; pool は task-pool の値",
+          (a, eval)-> Task.spawn(a[0], eval, (a[1] == null) ? Task.SPAWNER
+                                 : (ExecutorService) a[1], false)),
+
+        c("await", 1, new Object[] { null }, false,
+          "(await task [timeout-ms]) => task の関数の値",
+          (a)-> ((Task) a[0]).await(a[1])),
+
+        c("task-done", 1, "(task-done task) => task が終わっていれば t",
+          (a)-> ((Task) a[0]).isDone() ? LL.S_T : null),
+
+        c("chan", 0, new Object[] { 1 }, false,
+          "(chan [n]) => 容量 n の新しいチャネル",
+          (a)-> new Chan ((Integer) a[0])),
+
+        c("send", 2, "(send c x): 空きができるまで待って c に x (nil 以外) を送る",
+          (a)-> {
+              ((Chan) a[0]).send(a[1]);
+              return a[1];
           }),
+
+        c("recv", 1, "(recv c) => c から受け取った値; 閉じられて空ならば nil",
+          (a)-> ((Chan) a[0]).recv()),
+
+        c("close-chan", 1, "(close-chan c): c を閉じる",
+          (a)-> {
+              ((Chan) a[0]).close();
+              return null;
+          }),
+
+        c("select", 1, new Object[] { null }, false,
+          "(select chans [timeout-ms]) => 受信できたチャネル c と値 x の " +
+          "(c x); 時間切れならば nil",
+          (a)-> Chan.select((Cell) a[0], a[1])),
+
+        c("pmap", 2, "(pmap f xs) => f を並列に適用した結果の並び",
+          (a, eval)-> BuiltinParallel.map(a[0], a[1], eval)),
+
+        c("pkeep", 2, "(pkeep f xs) => f を並列に適用して真になる要素の並び",
+          (a, eval)-> BuiltinParallel.keep(a[0], a[1], eval)),
+
+        c("preduce", 2, "(preduce f xs) => 結合的な f による並列の畳込み",
+          (a, eval)-> BuiltinParallel.reduce(a[0], a[1], eval)),
+
+        c("task-pool", 0, new Object[] { null }, false,
+          "(task-pool [n]) => n 本のスレッドで spawn する実行器",
+          (a)-> Task.newPool(a[0])),
 
         c("scar", 2, "(scar pair value): pair の car を value で置き換える",
           (a)-> {
@@ -485,6 +661,10 @@ public class Builtins extends BuiltinUtil
               } else if (x instanceof char[]) {
                   int i = (Integer) index;
                   ((char[]) x)[i] = (Character) value;
+              } else if (x instanceof Vec) {
+                  ((Vec) x).set((Integer) index, value);
+              } else if (BuiltinArray.isArray(x)) {
+                  BuiltinArray.set(x, (Integer) index, value);
               } else {
                   ((Table) x).put(index, value);
               }
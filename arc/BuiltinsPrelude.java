@@ -0,0 +1,611 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/** arc.arc で定義される頻用の関数を置き換える組込み関数の集合体.
+ * 各関数は，真正なリストに対する普通の場合だけを Java で直接処理し，
+ * それ以外の場合 (文字列や不正なリストなど) は置き換える前の Arc の
+ * 定義をそのまま呼び出す。したがって誤りの報告も元の定義と同じになる。
+ * <p>
+ * 実引数として与えられた関数は {@link Eval#callBack} を通じて評価器の
+ * 継続の上で呼び出すから，その中での ccc や例外は元の定義と同じように
+ * 振る舞う。そのため，ループの状態は呼び出しのたびに新しく作り，
+ * 捕捉された継続から再開されても壊れないようにする。ただし元の定義が
+ * 変数を更新しながら数える count は，それと同じく状態を共有する。
+ * 元の定義との一致は prelude-parity.arc で確かめられる。
+ * @see Main#initialize
+ */
+public class BuiltinsPrelude extends BuiltinUtil
+{
+    /** このクラスはインスタンスを作らない。*/
+    private BuiltinsPrelude () {}
+
+    /** 置き換える関数の本体。orig は置き換える前の定義である。*/
+    @FunctionalInterface private interface Body {
+        Object call(Object[] a, Eval eval, Fn orig) throws Exception;
+    }
+
+    /** 置き換える関数の定義 */
+    private static final class Def {
+        final String name;
+        final int fixedArgs;
+        final Object[] defaultExps;
+        final boolean hasRest;
+        final String doc;
+        final Body body;
+
+        Def (String name, int fixedArgs, Object[] defaultExps,
+             boolean hasRest, String doc, Body body) {
+            this.name = name;
+            this.fixedArgs = fixedArgs;
+            this.defaultExps = defaultExps;
+            this.hasRest = hasRest;
+            this.doc = doc;
+            this.body = body;
+        }
+
+        // 元の定義 orig がこれと同じ仮引数の形をしているか？
+        boolean matches(Fn orig) {
+            int n = (defaultExps == null) ? 0 : defaultExps.length;
+            int m = (orig.defaultExps == null) ? 0 : orig.defaultExps.length;
+            return (orig.fixedArgs == fixedArgs && m == n &&
+                    orig.hasRest == hasRest);
+        }
+    } // Def
+
+    private static Def d(String name, int fixedArgs, String doc, Body body) {
+        return new Def (name, fixedArgs, null, false, doc, body);
+    }
+
+    /** interp の大域変数のうち，初期化 Arc スクリプトで定義された関数
+     * のままであるものを Java による実装に置き換える。
+     * 初期化 Arc スクリプトを読み込んだ直後に呼び出すこと。
+     */
+    public static void install(IInterp interp) {
+        for (Def def: DEFS) {
+            GlobalRef ref = interp.getGlobalRef(Symbol.of(def.name));
+            if (! ref.isBound())
+                continue;
+            Object x = ref.value;
+            if (! (x instanceof Fn) || x instanceof Fn.Macro)
+                continue;
+            Fn orig = (Fn) x;
+            if (! def.matches(orig))
+                continue;
+            Body body = def.body;
+            ref.setValue(new Intrinsic (def.fixedArgs, def.defaultExps,
+                                        def.hasRest, def.name, def.doc,
+                                        null,
+                                        (a, eval)-> body.call(a, eval, orig)));
+        }
+    }
+
+    // 元の定義 orig を実引数列 args に適用する。
+    private static Object fallBack(Eval eval, Fn orig, Object... args) {
+        return eval.callBack(orig, LL.list(args), null);
+    }
+
+    // x は Arc の testify で関数のまま使われるか？ (isa x 'fn)
+    private static boolean isFn(Object x) {
+        return x instanceof Function && ! (x instanceof Fn.Macro);
+    }
+
+    // x は nil で終わるリストか？
+    private static boolean isProperList(Object x) {
+        while (x instanceof Cell)
+            x = ((Cell) x).cdr;
+        return x == null;
+    }
+
+    // 真正なリスト xs は３個以上の要素を持つか？ (cddr xs)
+    private static boolean hasThree(Object xs) {
+        for (int i = 0; i < 2; i++)
+            if (xs == null)
+                return false;
+            else
+                xs = ((Cell) xs).cdr;
+        return xs != null;
+    }
+
+    // 真正なリスト xs の新しいコピー
+    private static Cell copy(Object xs) {
+        Cell head = null;
+        Cell tail = null;
+        for (Object j = xs; j != null; j = ((Cell) j).cdr) {
+            var c = new Cell (((Cell) j).car, null);
+            if (tail == null)
+                head = c;
+            else
+                tail.cdr = c;
+            tail = c;
+        }
+        return head;
+    }
+
+    // リスト acc を逆順にした新しいリスト (acc 自体は変更しない)
+    private static Cell reverse(Cell acc) {
+        Cell result = null;
+        for (Cell j = acc; j != null; j = (Cell) j.cdr)
+            result = new Cell (j.car, result);
+        return result;
+    }
+
+    // (iso x y)
+    private static boolean iso(Object x, Object y) {
+        for (;;) {
+            if (isSame(x, y))
+                return true;
+            if (! (x instanceof Cell && y instanceof Cell))
+                return false;
+            Cell xc = (Cell) x;
+            Cell yc = (Cell) y;
+            if (! iso(xc.car, yc.car))
+                return false;
+            x = xc.cdr;
+            y = yc.cdr;
+        }
+    }
+
+
+    // 以下，関数 f を呼び戻しながらリストをたどる。
+    // 状態は (count を除き) 引数で受け渡し，破壊的に変更しない。
+
+    private static Object map1(Eval eval, Object f, Cell xs, Cell acc) {
+        if (xs == null)
+            return reverse(acc);
+        return eval.callBack(f, new Cell (xs.car, null), (v, ev)->
+                             map1(ev, f, (Cell) xs.cdr, new Cell (v, acc)));
+    }
+
+    // keep が真ならば f が真となる要素を，偽ならば偽となる要素を集める。
+    private static Object filter(Eval eval, Object f, boolean keep,
+                                 Cell xs, Cell acc) {
+        if (xs == null)
+            return reverse(acc);
+        Object x = xs.car;
+        return eval.callBack(f, new Cell (x, null), (v, ev)->
+                             filter(ev, f, keep, (Cell) xs.cdr,
+                                    ((v != null) == keep) ?
+                                    new Cell (x, acc) : acc));
+    }
+
+    private static Object some(Eval eval, Object f, Cell xs) {
+        if (xs == null)
+            return null;
+        return eval.callBack(f, new Cell (xs.car, null), (v, ev)->
+                             (v != null) ? v : some(ev, f, (Cell) xs.cdr));
+    }
+
+    private static Object all(Eval eval, Object f, Cell xs) {
+        if (xs == null)
+            return LL.S_T;
+        return eval.callBack(f, new Cell (xs.car, null), (v, ev)->
+                             (v == null) ? null : all(ev, f, (Cell) xs.cdr));
+    }
+
+    private static Object mem(Eval eval, Object f, Cell xs) {
+        if (xs == null)
+            return null;
+        return eval.callBack(f, new Cell (xs.car, null), (v, ev)->
+                             (v != null) ? xs : mem(ev, f, (Cell) xs.cdr));
+    }
+
+    private static Object pos(Eval eval, Object f, Cell xs, int n) {
+        if (xs == null)
+            return null;
+        return eval.callBack(f, new Cell (xs.car, null), (v, ev)->
+                             (v != null) ? n :
+                             pos(ev, f, (Cell) xs.cdr, n + 1));
+    }
+
+    // each と同じく，リストの末尾が cons でなければそこで終わる。
+    // arc.arc の count と同じく，個数 n[0] は一つの呼出しの中で共有する
+    // 変数である。捕捉された継続から再開されると，それまでの個数に加える。
+    private static Object count(Eval eval, Object f, Object xs, int[] n) {
+        if (! (xs instanceof Cell))
+            return n[0];
+        Cell xc = (Cell) xs;
+        return eval.callBack(f, new Cell (xc.car, null), (v, ev)-> {
+                if (v != null)
+                    n[0]++;
+                return count(ev, f, xc.cdr, n);
+            });
+    }
+
+    private static Object reduce(Eval eval, Object f, Object acc, Cell xs) {
+        if (xs == null)
+            return acc;
+        return eval.callBack(f, LL.list(acc, xs.car), (v, ev)->
+                             reduce(ev, f, v, (Cell) xs.cdr));
+    }
+
+
+    private static Object[] toArray(Iterable<?> seq) {
+        var xs = new ArrayList<Object> ();
+        for (Object x: seq)
+            xs.add(x);
+        return xs.toArray();
+    }
+
+    private static Object[] toArray(char[] s) {
+        var xs = new Object[s.length];
+        for (int i = 0; i < s.length; i++)
+            xs[i] = s[i];
+        return xs;
+    }
+
+    // 整列した要素 xs から seq と同じ型の列を新しく作る。
+    private static Object rebuild(Object seq, Object[] xs) {
+        if (seq instanceof char[]) {
+            var s = new char[xs.length];
+            for (int i = 0; i < xs.length; i++)
+                s[i] = (Character) xs[i];
+            return s;
+        } else if (seq instanceof Vec) {
+            return new Vec (xs);
+        } else {
+            return LL.list(xs);
+        }
+    }
+
+    // test が組込みの < か > で，xs の要素がすべて同じ種類の比較できる
+    // 値ならば，それによる順序を返す。さもなければ null を返す。
+    private static Comparator<Object> nativeOrder(Object test, Object[] xs) {
+        if (! (test instanceof Intrinsic))
+            return null;
+        String name = ((Intrinsic) test).getName();
+        if (! name.equals("<") && ! name.equals(">"))
+            return null;
+        Comparator<Object> c;
+        if (allOf(xs, Number.class))
+            c = (x, y)-> BuiltinMath.compare((Number) x, (Number) y);
+        else if (allOf(xs, char[].class))
+            c = (x, y)-> compare((char[]) x, (char[]) y);
+        else if (allOf(xs, Symbol.class))
+            c = (x, y)-> ((Symbol) x).compareTo((Symbol) y);
+        else if (allOf(xs, Character.class))
+            c = (x, y)-> ((Character) x).compareTo((Character) y);
+        else
+            return null;
+        return name.equals("<") ? c : c.reversed();
+    }
+
+    private static boolean allOf(Object[] xs, Class<?> type) {
+        for (Object x: xs)
+            if (! type.isInstance(x))
+                return false;
+        return true;
+    }
+
+    /** Arc の関数 test で比較する安定なマージソート.
+     * 比較のたびに Eval#callBack で (test y x) を呼び戻し，その結果を
+     * 受けて続きを行う。arc.arc の merge と同じく，右の列の要素が左の
+     * 列の要素より真に小さいときだけ右から取るから安定である。
+     * arc.arc の mergesort と同じく，列を前半 floor(n/2) 個と残りに
+     * 分けて前半，後半の順に整列してから併合する。したがって test は
+     * 元の定義と同じ実引数で同じ順に呼ばれ，test が誤りを起こすときも
+     * 同じ誤りになる。
+     * 作業用の配列を破壊的に使うから，比較の中で ccc により捕捉された
+     * 継続を後で再開したときの結果は保証しない。arc.arc の mergesort
+     * も scdr によって破壊的に整列する。
+     */
+    private static final class MergeSort implements Resume {
+        private final Object test;
+        private final Object seq;
+        private final Object[] xs;
+        private final Object[] tmp;
+        private final int[] merges; // 併合する (lo, mid, hi) を行う順に並べた列
+        private int m = 0;          // 次に行う併合の merges 上の位置
+        private int lo, mid, hi;    // 併合中の範囲 [lo, mid) と [mid, hi)
+        private int i, j;           // 左の列と右の列の現在位置
+        private int o;              // tmp への出力位置
+
+        MergeSort (Object test, Object[] xs, Object seq) {
+            this.test = test;
+            this.seq = seq;
+            this.xs = xs;
+            this.tmp = new Object[xs.length];
+            this.merges = new int[3 * Math.max(xs.length - 1, 0)];
+            plan(0, xs.length, 0);
+        }
+
+        // [lo, hi) の整列に必要な併合を後順に merges[k..] へ書き，
+        // 次の位置を返す。
+        private int plan(int lo, int hi, int k) {
+            int n = hi - lo;
+            if (n < 2)
+                return k;
+            int mid = lo + n / 2;
+            k = plan(lo, mid, k);
+            k = plan(mid, hi, k);
+            merges[k] = lo;
+            merges[k + 1] = mid;
+            merges[k + 2] = hi;
+            return k + 3;
+        }
+
+        // 次の比較を呼び戻す。整列し終えたら結果を返す。
+        Object step(Eval eval) {
+            for (;;) {
+                if (i < mid && j < hi)
+                    return eval.callBack(test, LL.list(xs[j], xs[i]), this);
+                while (i < mid)
+                    tmp[o++] = xs[i++];
+                while (j < hi)
+                    tmp[o++] = xs[j++];
+                System.arraycopy(tmp, lo, xs, lo, hi - lo);
+                if (m == merges.length)
+                    return rebuild(seq, xs);
+                lo = merges[m];
+                mid = merges[m + 1];
+                hi = merges[m + 2];
+                m += 3;
+                i = lo;
+                j = mid;
+                o = lo;
+            }
+        }
+
+        @Override public Object resume(Object value, Eval eval) {
+            tmp[o++] = (value != null) ? xs[j++] : xs[i++];
+            return step(eval);
+        }
+    } // MergeSort
+
+
+    /** 置き換える関数の定義からなる配列 */
+    private static final Def[] DEFS = new Def[] {
+        d("copylist", 1, "(copylist xs) => xs のコピー",
+          (a, eval, orig)-> {
+              if (! isProperList(a[0]))
+                  return fallBack(eval, orig, a[0]);
+              return copy(a[0]);
+          }),
+
+        d("rev", 1, "(rev xs) => xs を逆順にしたリスト",
+          (a, eval, orig)-> {
+              if (! isProperList(a[0]))
+                  return fallBack(eval, orig, a[0]);
+              return reverse((Cell) a[0]);
+          }),
+
+        new Def ("join", 0, null, true, "(join xs ...) => 連結したリスト",
+                 (a, eval, orig)-> {
+                     var args = (Cell) a[0];
+                     if (args == null)
+                         return null;
+                     for (Object xs: args)
+                         if (! isProperList(xs))
+                             return eval.callBack(orig, args, null);
+                     Cell result = null;
+                     Cell tail = null;
+                     for (Object xs: args)
+                         if (xs != null) {
+                             Cell c = copy(xs);
+                             if (tail == null)
+                                 result = c;
+                             else
+                                 tail.cdr = c;
+                             tail = c;
+                             while (tail.cdr != null)
+                                 tail = (Cell) tail.cdr;
+                         }
+                     return result;
+                 }),
+
+        d("assoc", 2, "(assoc key al) => al の中で car が key である要素",
+          (a, eval, orig)-> {
+              Object key = a[0];
+              for (Object al = a[1]; al instanceof Cell;
+                   al = ((Cell) al).cdr) {
+                  Object e = ((Cell) al).car;
+                  if (e instanceof Cell && isSame(((Cell) e).car, key))
+                      return e;
+              }
+              return null;
+          }),
+
+        d("iso", 2, "(iso x y) => x と y が同形か？",
+          (a, eval, orig)-> iso(a[0], a[1]) ? LL.S_T : null),
+
+        d("firstn", 2, "(firstn n xs) => xs の先頭 n 個の要素のリスト",
+          (a, eval, orig)-> {
+              if (a[0] == null)
+                  return a[1];
+              if (! (a[0] instanceof Integer))
+                  return fallBack(eval, orig, a[0], a[1]);
+              int n = (Integer) a[0];
+              Cell result = null;
+              Cell tail = null;
+              for (Object j = a[1]; n > 0 && j != null; n--) {
+                  if (! (j instanceof Cell))
+                      return fallBack(eval, orig, a[0], a[1]);
+                  Cell c = new Cell (((Cell) j).car, null);
+                  if (tail == null)
+                      result = c;
+                  else
+                      tail.cdr = c;
+                  tail = c;
+                  j = ((Cell) j).cdr;
+              }
+              return result;
+          }),
+
+        d("nthcdr", 2, "(nthcdr n xs) => xs から n 個の要素を除いたもの",
+          (a, eval, orig)-> {
+              if (a[0] == null)
+                  return a[1];
+              if (! (a[0] instanceof Integer))
+                  return fallBack(eval, orig, a[0], a[1]);
+              Object j = a[1];
+              for (int n = (Integer) a[0]; n > 0; n--) {
+                  if (j instanceof Cell)
+                      j = ((Cell) j).cdr;
+                  else if (j != null)
+                      return fallBack(eval, orig, a[0], a[1]);
+              }
+              return j;
+          }),
+
+        d("last", 1, "(last xs) => xs の最後の要素",
+          (a, eval, orig)-> {
+              Object j = a[0];
+              if (j == null)
+                  return null;
+              if (! (j instanceof Cell))
+                  return fallBack(eval, orig, j);
+              Cell c = (Cell) j;
+              while (c.cdr != null) {
+                  if (! (c.cdr instanceof Cell))
+                      return fallBack(eval, orig, j);
+                  c = (Cell) c.cdr;
+              }
+              return c.car;
+          }),
+
+        d("map1", 2, "(map1 f xs) => xs の各要素に f を適用したリスト",
+          (a, eval, orig)-> {
+              if (! isProperList(a[1]))
+                  return fallBack(eval, orig, a[0], a[1]);
+              return map1(eval, a[0], (Cell) a[1], null);
+          }),
+
+        d("mem", 2, "(mem test seq) => test を満たす要素から始まる部分",
+          (a, eval, orig)-> {
+              Object test = a[0];
+              if (! isProperList(a[1]))
+                  return fallBack(eval, orig, test, a[1]);
+              if (isFn(test))
+                  return mem(eval, test, (Cell) a[1]);
+              for (Object j = a[1]; j != null; j = ((Cell) j).cdr)
+                  if (isSame(((Cell) j).car, test))
+                      return j;
+              return null;
+          }),
+
+        d("some", 2, "(some test seq) => test を満たす要素があるか？",
+          (a, eval, orig)-> {
+              Object test = a[0];
+              if (! isProperList(a[1]))
+                  return fallBack(eval, orig, test, a[1]);
+              if (isFn(test))
+                  return some(eval, test, (Cell) a[1]);
+              for (Object j = a[1]; j != null; j = ((Cell) j).cdr)
+                  if (isSame(((Cell) j).car, test))
+                      return LL.S_T;
+              return null;
+          }),
+
+        d("all", 2, "(all test seq) => すべての要素が test を満たすか？",
+          (a, eval, orig)-> {
+              Object test = a[0];
+              if (! isProperList(a[1]))
+                  return fallBack(eval, orig, test, a[1]);
+              if (isFn(test))
+                  return all(eval, test, (Cell) a[1]);
+              for (Object j = a[1]; j != null; j = ((Cell) j).cdr)
+                  if (! isSame(((Cell) j).car, test))
+                      return null;
+              return LL.S_T;
+          }),
+
+        d("keep", 2, "(keep test seq) => test を満たす要素だけのリスト",
+          (a, eval, orig)-> {
+              Object test = a[0];
+              if (! isProperList(a[1]))
+                  return fallBack(eval, orig, test, a[1]);
+              if (isFn(test))
+                  return filter(eval, test, true, (Cell) a[1], null);
+              Cell acc = null;
+              for (Object j = a[1]; j != null; j = ((Cell) j).cdr)
+                  if (isSame(((Cell) j).car, test))
+                      acc = new Cell (((Cell) j).car, acc);
+              return reverse(acc);
+          }),
+
+        d("rem", 2, "(rem test seq) => test を満たす要素を除いたリスト",
+          (a, eval, orig)-> {
+              Object test = a[0];
+              if (! isProperList(a[1]))
+                  return fallBack(eval, orig, test, a[1]);
+              if (isFn(test))
+                  return filter(eval, test, false, (Cell) a[1], null);
+              Cell acc = null;
+              for (Object j = a[1]; j != null; j = ((Cell) j).cdr)
+                  if (! isSame(((Cell) j).car, test))
+                      acc = new Cell (((Cell) j).car, acc);
+              return reverse(acc);
+          }),
+
+        new Def ("pos", 2, new Object[] { 0 }, false,
+                 "(pos test seq [start]) => test を満たす要素の位置",
+                 (a, eval, orig)-> {
+                     Object test = a[0];
+                     if (! isProperList(a[1]) ||
+                         ! (a[2] instanceof Integer))
+                         return fallBack(eval, orig, test, a[1], a[2]);
+                     int start = (Integer) a[2];
+                     Object j = a[1];
+                     for (int i = 0; i < start && j != null; i++)
+                         j = ((Cell) j).cdr;
+                     if (isFn(test))
+                         return pos(eval, test, (Cell) j, start);
+                     for (int n = start; j != null; j = ((Cell) j).cdr, n++)
+                         if (isSame(((Cell) j).car, test))
+                             return n;
+                     return null;
+                 }),
+
+        d("count", 2, "(count test xs) => test を満たす要素の個数",
+          (a, eval, orig)-> {
+              Object test = a[0];
+              if (a[1] != null && ! (a[1] instanceof Cell))
+                  return fallBack(eval, orig, test, a[1]);
+              if (isFn(test))
+                  return count(eval, test, a[1], new int[] { 0 });
+              int n = 0;
+              for (Object j = a[1]; j instanceof Cell; j = ((Cell) j).cdr)
+                  if (isSame(((Cell) j).car, test))
+                      n++;
+              return n;
+          }),
+
+        d("reduce", 2, "(reduce f xs) => xs を f で左から畳み込んだ値",
+          (a, eval, orig)-> {
+              Object f = a[0];
+              Object xs = a[1];
+              // 要素が３個未満ならば元の定義のとおり (apply f xs) とする。
+              if (! isProperList(xs) || ! hasThree(xs))
+                  return fallBack(eval, orig, f, xs);
+              Cell c1 = (Cell) xs;
+              Cell c2 = (Cell) c1.cdr;
+              return eval.callBack(f, LL.list(c1.car, c2.car), (v, ev)->
+                                   reduce(ev, f, v, (Cell) c2.cdr));
+          }),
+
+        d("sort", 2, "(sort test seq) => seq を test で安定に整列したコピー",
+          (a, eval, orig)-> {
+              Object test = a[0];
+              Object seq = a[1];
+              Object[] xs;
+              if (seq == null)
+                  return null;
+              else if ((seq instanceof Cell && isProperList(seq)) ||
+                       seq instanceof Vec)
+                  xs = toArray((Iterable<?>) seq);
+              else if (seq instanceof char[])
+                  xs = toArray((char[]) seq);
+              else
+                  return fallBack(eval, orig, test, seq);
+              Comparator<Object> order = nativeOrder(test, xs);
+              if (order != null) {
+                  Arrays.sort(xs, order); // 安定な TimSort
+                  return rebuild(seq, xs);
+              }
+              return new MergeSort (test, xs, seq).step(eval);
+          }),
+    };
+} // BuiltinsPrelude
@@ -0,0 +1,147 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Arc の ctable (並行なハッシュ表) を実装する。
+ * ConcurrentHashMap を使い，get はロックをとらない。
+ * table と同じく関数呼出しの形式，sref, maptable, len, keys で使える。
+ * 反復は弱一貫的であり，反復中に他のスレッドが表を変更してもかまわない。
+ * <p>
+ * (tupdate t k f) は，読み出した値に f を適用した結果を，値がその間に
+ * 変わっていなければ格納する (compare-and-set)。変わっていたら
+ * 読み直して f を呼び直す。したがって f は評価器の上でロックなしに
+ * 呼び出され，格納に成功した更新それぞれに対して f は一度だけ呼ばれる。
+ * <p>
+ * キーの比較は table と同じく equals による。ただし char[] で表現された
+ * 文字列は内容で比較し，格納時と取出し時にコピーする。
+ */
+public final class CTable extends Table
+{
+    private final ConcurrentHashMap<Object, Object> map =
+        new ConcurrentHashMap<> ();
+
+    // 文字列のキーを内容で比較するための包み
+    private static final class Str {
+        final char[] chars;
+        final int hash;
+
+        Str (char[] chars) {
+            this.chars = chars;
+            this.hash = Arrays.hashCode(chars);
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+
+        @Override public boolean equals(Object x) {
+            return (x instanceof Str) && Arrays.equals(chars, ((Str) x).chars);
+        }
+    } // Str
+
+    // 検索のためのキー
+    private static Object wrap(Object key) {
+        return (key instanceof char[]) ? new Str ((char[]) key) : key;
+    }
+
+    // 格納のためのキー。文字列はコピーする。
+    private static Object wrapCopy(Object key) {
+        return (key instanceof char[]) ?
+            new Str (((char[]) key).clone()) : key;
+    }
+
+    // 取り出すためのキー。表の中の文字列を変更されないようにコピーする。
+    private static Object unwrapCopy(Object key) {
+        return (key instanceof Str) ? ((Str) key).chars.clone() : key;
+    }
+
+    /** java.util.Map#get と同様。ロックをとらない。
+     */
+    @Override public Object get(Object key) {
+        return map.get(wrap(key));
+    }
+
+    /** java.util.Map#put と同様。
+     * ただし，value が null ならば java.util.Map#remove(key) と同様。
+     */
+    @Override public Object put(Object key, Object value) {
+        if (value == null)
+            return map.remove(wrap(key));
+        return map.put(wrapCopy(key), value);
+    }
+
+    /** エントリ数 (並行に変更されているときは概数)
+     */
+    @Override public int size() {
+        return map.size();
+    }
+
+    /** エントリを次々と与える弱一貫的なイテレータを返す。
+     * 文字列のキーはコピーして与えるから，それを変更しても表は壊れない。
+     */
+    @Override public Iterator<Map.Entry<Object, Object>> iterator() {
+        var i = map.entrySet().iterator();
+        return new Iterator<Map.Entry<Object, Object>> () {
+            public boolean hasNext() {
+                return i.hasNext();
+            }
+
+            public Map.Entry<Object, Object> next() {
+                var e = i.next();
+                return new AbstractMap.SimpleImmutableEntry<Object, Object>
+                    (unwrapCopy(e.getKey()), e.getValue());
+            }
+        };
+    }
+
+    /** 値が old (null ならばエントリなし) のままならば value に置き換える。
+     * value が null ならば削除する。置き換えたら真を返す。
+     */
+    boolean compareAndSet(Object key, Object old, Object value) {
+        if (old == null)
+            return value == null ||
+                map.putIfAbsent(wrapCopy(key), value) == null;
+        else if (value == null)
+            return map.remove(wrap(key), old);
+        else
+            return map.replace(wrap(key), old, value);
+    }
+
+    /** (tput-if-absent t k v) エントリがなければ v を格納する。
+     * 格納後の値 (既存の値または v) を返す。
+     */
+    Object putIfAbsent(Object key, Object value) {
+        if (value == null)
+            return get(key);
+        Object old = map.putIfAbsent(wrapCopy(key), value);
+        return (old == null) ? value : old;
+    }
+
+    /** (tincr t k [n]) 値 (なければ 0) に n を不可分に加え，その結果を返す。
+     */
+    Object increment(Object key, Object n) {
+        if (! (n instanceof Number))
+            throw new EvalException ("number expected", n);
+        return map.merge(wrapCopy(key), n, (old, d)-> {
+                if (! (old instanceof Number))
+                    throw new EvalException ("number expected", old);
+                return BuiltinMath.add(LL.list(old, d));
+            });
+    }
+
+    /** (tupdate t k f) を評価器の上で行う。
+     * 現在の値を読んで (f old) を呼び戻し，その結果で compareAndSet する。
+     * 失敗したら読み直してやり直す。格納した値を返す。
+     */
+    Object update(Object key, Object f, Eval eval) {
+        Object old = get(key);
+        return eval.callBack(f, new Cell(old, null), (v, ev)->
+                             compareAndSet(key, old, v) ? v :
+                             update(key, f, ev));
+    }
+} // CTable
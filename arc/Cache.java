@@ -0,0 +1,240 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/** Arc の cache-table (上限と期限のある表) を実装する。
+ * キーを iso で比較する Table であり，table と同じく関数呼出しの形式，
+ * sref, maptable などで使える。各メソッドは排他的に実行される。
+ * <p>
+ * 上限 max を超えたら最も長く使われていないエントリを捨てる (LRU)。
+ * 期限 ttl-ms を与えたら，各エントリは格納されてからその時間が
+ * 過ぎると無効になり，次に参照されたときに捨てられる。
+ * <p>
+ * {@link #lookupOrBegin} と {@link #finish} により，同じキーの値を
+ * 複数のスレッドが同時に求めても，読込み関数は一度だけ呼ばれる。
+ * 値として nil は格納しないから，読込み関数が nil を返したときは
+ * 次の参照で再び読み込む。
+ */
+public final class Cache extends Table
+{
+    private final long ttlNanos; // 0 ならば期限なし
+    private final Table loading = new Table (true, 0); // キー => Load
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long loads;
+    private long loadNanos;
+
+    // 格納される値と，その期限 (System.nanoTime の値)
+    private static final class Entry {
+        final Object value;
+        final long expires;
+
+        Entry (Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /** 読込み中であることを示す印。
+     * 読み込むスレッドが持ち，他のスレッドはその終わりを待つ。
+     */
+    static final class Load {
+        final Thread owner = Thread.currentThread();
+        final long start = System.nanoTime();
+        private final CountDownLatch done = new CountDownLatch (1);
+    }
+
+    /** 上限 max (0 ならば上限なし) と期限 ttlMillis (0 ならば期限なし)
+     * のキャッシュを構築する。
+     */
+    public Cache (int max, long ttlMillis) {
+        super(true, max);
+        if (ttlMillis < 0)
+            throw new EvalException ("negative ttl-ms", ttlMillis);
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /** (cache-table ['max n] ['ttl-ms n]) の実引数からキャッシュを作る。
+     */
+    static Cache of(Cell options) {
+        int max = 0;
+        long ttl = 0;
+        for (Object j = options; j != null; ) {
+            Cell c = (Cell) j;
+            Object name = c.car;
+            if (! (c.cdr instanceof Cell))
+                throw new EvalException ("value expected for", name);
+            Cell d = (Cell) c.cdr;
+            if (name == Symbol.of("max")) {
+                if (! (d.car instanceof Integer))
+                    throw new EvalException ("integer expected for max",
+                                             d.car);
+                max = (Integer) d.car;
+                if (max < 0)
+                    throw new EvalException ("negative max", max);
+            } else if (name == Symbol.of("ttl-ms")) {
+                if (! (d.car instanceof Integer || d.car instanceof Long))
+                    throw new EvalException ("integer expected for ttl-ms",
+                                             d.car);
+                ttl = ((Number) d.car).longValue();
+            } else
+                throw new EvalException ("unknown cache option", name);
+            j = d.cdr;
+        }
+        return new Cache (max, ttl);
+    }
+
+    /** 期限内ならば key の値を返す。ヒットとミスを数える。
+     */
+    @Override public synchronized Object get(Object key) {
+        Object value = fresh(key);
+        if (value != null)
+            hits++;
+        else
+            misses++;
+        return value;
+    }
+
+    /** key の値を value にする。value が null ならば削除する。
+     */
+    @Override public synchronized Object put(Object key, Object value) {
+        Object old = super.put(key, (value == null) ? null :
+                               new Entry (value, deadline()));
+        return (old == null) ? null : ((Entry) old).value;
+    }
+
+    /** 期限切れのエントリを捨ててからエントリ数を返す。
+     */
+    @Override public synchronized int size() {
+        var expired = new ArrayList<Object> ();
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Object, Object>> i = super.iterator();
+             i.hasNext(); ) {
+            var e = i.next();
+            if (isExpired((Entry) e.getValue(), now))
+                expired.add(e.getKey());
+        }
+        for (Object key: expired) {
+            super.put(key, null);
+            evictions++;
+        }
+        return super.size();
+    }
+
+    /** 期限内のエントリの写しを次々と与えるイテレータを返す。
+     * 写しをとるから，反復の途中で表が変更されてもかまわない。
+     */
+    @Override public synchronized Iterator<Map.Entry<Object, Object>>
+        iterator() {
+        var entries = new ArrayList<Map.Entry<Object, Object>> ();
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Object, Object>> i = super.iterator();
+             i.hasNext(); ) {
+            var e = i.next();
+            var entry = (Entry) e.getValue();
+            if (! isExpired(entry, now))
+                entries.add(new AbstractMap.SimpleImmutableEntry<Object, Object>
+                            (e.getKey(), entry.value));
+        }
+        return entries.iterator();
+    }
+
+    @Override void evicted(Object key, Object value) {
+        evictions++;
+    }
+
+    /** key の値があればそれを返す。なければ呼出し元が読み込むべき印
+     * として Load を返す。他のスレッドが読込み中ならば，その終わりを
+     * 待ってからやり直す。
+     */
+    Object lookupOrBegin(Object key) {
+        for (;;) {
+            Load other;
+            synchronized (this) {
+                Object value = fresh(key);
+                if (value != null) {
+                    hits++;
+                    return value;
+                }
+                other = (Load) loading.get(key);
+                if (other == null) {
+                    misses++;
+                    var load = new Load ();
+                    loading.put(key, load);
+                    return load;
+                }
+                if (other.owner == Thread.currentThread())
+                    throw new EvalException ("recursive load for", key);
+            }
+            try {
+                other.done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new EvalException ("interrupted while loading", key);
+            }
+        }
+    }
+
+    /** 読み込んだ value を格納して，待っているスレッドを起こす。
+     */
+    synchronized void finish(Object key, Load load, Object value) {
+        if (loading.get(key) == load) {
+            loading.put(key, null);
+            put(key, value);
+            loads++;
+            loadNanos += System.nanoTime() - load.start;
+            load.done.countDown();
+        }
+    }
+
+    /** 読込みが例外や脱出で終わったとき，印を取り除いて，
+     * 待っているスレッドを起こす。finish の後ならば何もしない。
+     */
+    synchronized void abort(Object key, Load load) {
+        if (loading.get(key) == load) {
+            loading.put(key, null);
+            load.done.countDown();
+        }
+    }
+
+    /** (cache-stats c) の値として統計の表を作る。
+     * キーは hits, misses, evictions, loads, load-time-ms である。
+     */
+    synchronized Table stats() {
+        var t = new Table ();
+        t.put(Symbol.of("hits"), BuiltinMath.reg(hits));
+        t.put(Symbol.of("misses"), BuiltinMath.reg(misses));
+        t.put(Symbol.of("evictions"), BuiltinMath.reg(evictions));
+        t.put(Symbol.of("loads"), BuiltinMath.reg(loads));
+        t.put(Symbol.of("load-time-ms"), loadNanos / 1e6);
+        return t;
+    }
+
+    // 期限内ならば key の値を返す。期限切れならば捨てて null を返す。
+    private Object fresh(Object key) {
+        var entry = (Entry) super.get(key);
+        if (entry == null)
+            return null;
+        if (isExpired(entry, System.nanoTime())) {
+            super.put(key, null);
+            evictions++;
+            return null;
+        }
+        return entry.value;
+    }
+
+    private long deadline() {
+        return (ttlNanos == 0) ? 0 : System.nanoTime() + ttlNanos;
+    }
+
+    private static boolean isExpired(Entry entry, long now) {
+        return entry.expires != 0 && now - entry.expires >= 0;
+    }
+} // Cache
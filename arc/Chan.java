@@ -0,0 +1,198 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Arc の chan (容量に上限のあるチャネル) を実装する。
+ * send は満杯ならば，recv は空ならば，スレッドを停止させて待つ。
+ * 待っている間スレッドは CPU を使わない (仮想スレッドならば
+ * キャリアのスレッドを手放す)。
+ * <p>
+ * close-chan の後の send は例外を投げる。recv は残りの要素を取り出し，
+ * 尽きたら nil を返す。この nil を送られた値と区別できるように，
+ * nil は送れない (send は例外を投げる)。したがって
+ * (whilet x (recv c) ...) はチャネルが閉じられて空になるまで受信する。
+ * <p>
+ * (select chans [timeout-ms]) は，いずれかのチャネルから受信できるまで
+ * 待ち，(c x) を返す。閉じられて空のチャネルは x を nil として選ばれる。
+ * 時間切れならば nil を返す。待つ間は各チャネルに自分のスレッドを
+ * 登録し，send や close-chan に起こしてもらう。
+ */
+public final class Chan
+{
+    private final Object[] buf;
+    private int head;           // 次に取り出す位置
+    private int count;          // 要素数
+    private boolean closed;
+    private final ReentrantLock lock = new ReentrantLock ();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayList<Thread> selectors = new ArrayList<> ();
+
+    /** 容量 capacity のチャネルを構築する。
+     */
+    public Chan (int capacity) {
+        if (capacity <= 0)
+            throw new EvalException ("positive capacity expected", capacity);
+        buf = new Object[capacity];
+    }
+
+    /** (send c x) 空きができるまで待って x を加える。
+     * @throws EvalException x が nil であるか，チャネルが閉じられている。
+     */
+    void send(Object x) {
+        if (x == null)
+            throw new EvalException ("cannot send nil", this);
+        lock.lock();
+        try {
+            while (count == buf.length && ! closed)
+                notFull.await();
+            if (closed)
+                throw new EvalException ("send on closed channel", this);
+            buf[(head + count) % buf.length] = x;
+            count++;
+            notEmpty.signal();
+            wakeSelectors();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new EvalException ("send interrupted", this);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** (recv c) 要素が来るまで待って取り出す。
+     * 閉じられて空ならば null を返す。
+     */
+    Object recv() {
+        lock.lock();
+        try {
+            while (count == 0 && ! closed)
+                notEmpty.await();
+            return (count == 0) ? null : take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new EvalException ("recv interrupted", this);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** (close-chan c) チャネルを閉じ，待っているスレッドをすべて起こす。
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            wakeSelectors();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // lock を保持して呼ぶこと。
+    private Object take() {
+        Object x = buf[head];
+        buf[head] = null;
+        head = (head + 1) % buf.length;
+        count--;
+        notFull.signal();
+        return x;
+    }
+
+    // lock を保持して呼ぶこと。
+    private void wakeSelectors() {
+        for (Thread th: selectors)
+            LockSupport.unpark(th);
+    }
+
+    // 待たずに受信を試みる。受信できたら (または閉じられて空ならば)
+    // 値を要素とする長さ 1 の配列を，さもなければ null を返す。
+    private Object[] poll() {
+        lock.lock();
+        try {
+            if (count > 0)
+                return new Object[] { take() };
+            return closed ? new Object[] { null } : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void register(Thread th, boolean on) {
+        lock.lock();
+        try {
+            if (on)
+                selectors.add(th);
+            else
+                selectors.remove(th);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** (select chans [timeout-ms]) の本体
+     * 公平のため，調べ始めるチャネルを毎回無作為に選ぶ。
+     */
+    static Object select(Cell chans, Object timeoutMillis) {
+        var cs = new ArrayList<Chan> ();
+        if (chans != null)
+            for (Object x: chans)
+                if (x instanceof Chan)
+                    cs.add((Chan) x);
+                else
+                    throw new EvalException ("chan expected", x);
+        if (cs.isEmpty())
+            throw new EvalException ("no channels to select", chans);
+        long deadline = (timeoutMillis == null) ? 0 : System.nanoTime() +
+            TimeUnit.MILLISECONDS.toNanos(((Number) timeoutMillis).longValue());
+        Thread me = Thread.currentThread();
+        // 先に登録しておけば，調べた後に来た要素による unpark を逃さない。
+        for (Chan c: cs)
+            c.register(me, true);
+        try {
+            int n = cs.size();
+            for (;;) {
+                int start = ThreadLocalRandom.current().nextInt(n);
+                for (int i = 0; i < n; i++) {
+                    Chan c = cs.get((start + i) % n);
+                    Object[] got = c.poll();
+                    if (got != null)
+                        return LL.list(c, got[0]);
+                }
+                if (timeoutMillis == null) {
+                    LockSupport.park(cs);
+                } else {
+                    long rest = deadline - System.nanoTime();
+                    if (rest <= 0)
+                        return null;
+                    LockSupport.parkNanos(cs, rest);
+                }
+                if (Thread.interrupted()) {
+                    me.interrupt();
+                    throw new EvalException ("select interrupted", chans);
+                }
+            }
+        } finally {
+            for (Chan c: cs)
+                c.register(me, false);
+        }
+    }
+
+    @Override public String toString() {
+        lock.lock();
+        try {
+            return "#<chan " + count + "/" + buf.length +
+                (closed ? " closed>" : ">");
+        } finally {
+            lock.unlock();
+        }
+    }
+} // Chan
@@ -0,0 +1,10 @@
+// R01.06.08/R08.10.18 (鈴)
+package arc;
+
+/** 継続における演算子 */
+enum ContOp { // internal
+    THEN, DO, ASSIGN, APPLY, APPLY_FUN, EVAL_ARG, CONS_ARGS, RESTORE_ENV,
+    EVAL_AGAIN, EVAL_VAL, RESULT_VAL, DEFER, POP_WIND, END_ESCAPE,
+    STORE_ARG, APPLY_FRAME, APPLY_1, BRANCH, APPLY_CALL,
+    BINARY_FUN, BINARY_ARG2, BINARY_LEFT, CALL_BACK, RESUME;
+}
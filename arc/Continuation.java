@@ -1,77 +1,217 @@
-// R01.06.08/R02.05.05 (鈴)
+// R01.06.08/R08.10.18 (鈴)
 // from https://github.com/nukata/little-scheme-in-java - Continuation.java
 package arc;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.HashSet;
 
-/** 継続における演算子 */
-enum ContOp { // internal
-    THEN, DO, ASSIGN, APPLY, APPLY_FUN, EVAL_ARG, CONS_ARGS, RESTORE_ENV,
-    EVAL_AGAIN, EVAL_VAL, RESULT_VAL, DEFER, POP_WIND;
-}
+/** ステップのスタックとして構成された Arc の継続.
+ * 各ステップの演算子と値をそれぞれ byte[] と Object[] の並列配列に
+ * 積むことで，ステップごとのオブジェクト割り当てを避ける。
+ * <p>
+ * スタックは書き込み可能な最上部と，凍結された Segment の連鎖からなる。
+ * 継続を捕捉するときは最上部を凍結して連鎖を共有するだけだから，
+ * スタックの深さによらず定数時間で済む。凍結された部分からステップを
+ * 取り出すときは，その一部を最上部へとコピーしてから取り出す。
+ */
+public class Continuation {
+    private static final ContOp[] OPS = ContOp.values();
+    private static final byte RESTORE_ENV =
+        (byte) ContOp.RESTORE_ENV.ordinal();
+    private static final byte END_ESCAPE =
+        (byte) ContOp.END_ESCAPE.ordinal();
+    private static final int INITIAL_CAPACITY = 32;
+    private static final byte[] NO_OPS = new byte[0];
+    private static final Object[] NO_VALS = new Object[0];
 
-/** 継続における１ステップ */
-class Step { // internal
-    final ContOp op;
-    final Object val;
+    /** 凍結されたステップの列の断片。一度作ったら内容を変えない。
+     * 配列は複数の断片から共有されうるが，count より上の要素は無視する。
+     */
+    private static final class Segment {
+        final byte[] ops;
+        final Object[] vals;
+        final int count;        // この断片のステップ数
+        final Segment parent;   // この断片の下にある断片 (または null)
+        final int depth;        // parent 以下も合わせたステップ数
 
-    Step(ContOp op, Object val) {
-        this.op = op;
-        this.val = val;
-    }
-}
+        Segment(byte[] ops, Object[] vals, int count, Segment parent) {
+            this.ops = ops;
+            this.vals = vals;
+            this.count = count;
+            this.parent = parent;
+            this.depth = (parent == null) ? count : count + parent.depth;
+        }
+    } // Segment
 
-/** ステップのスタックとして構成された Arc の継続 */
-public class Continuation {
-    private Deque<Step> stack;
+    /** 一度だけ上方へ脱出するための継続.
+     * Arc の (ecc fn) が fn に与える。ccc と異なりスタックをコピーせず，
+     * 作られたときのスタックの深さと winds だけを記録する。
+     * その動的範囲を抜けた後で呼び出すことはできない。
+     * errfn を伴うものは on-err の捕捉範囲の目印としてだけ使う。
+     */
+    public static final class Escape {
+        final Continuation k;   // 脱出先の継続
+        final int depth;        // 目印の END_ESCAPE を含むステップ数
+        final Cell winds;       // 作られたときの winds
+        final Object errfn;     // on-err の目印ならばエラー処理関数
+
+        Escape(Continuation k, int depth, Cell winds, Object errfn) {
+            this.k = k;
+            this.depth = depth;
+            this.winds = winds;
+            this.errfn = errfn;
+        }
+
+        @Override public String toString() {
+            return "#<escape:" + depth + ">";
+        }
+    } // Escape
+
+    private byte[] ops;         // 最上部の各ステップの演算子の序数
+    private Object[] vals;      // 最上部の各ステップの値
+    private int sp;             // 最上部のステップ数
+    private Segment parent;     // 最上部の下にある凍結された部分
     private Cell winds;
+    private Object epoch;       // 捕捉されるたびに新しくなる識別子
 
     /** 空の継続をつくる。 */
     public Continuation() {
-        stack = new ArrayDeque<Step> ();
+        ops = NO_OPS;
+        vals = NO_VALS;
+        sp = 0;
+        parent = null;
         winds = null;
+        epoch = new Object();
     }
 
-    /** 他の継続のコピーをつくる。 */
+    /** 他の継続のコピーをつくる。
+     * other の最上部を凍結して共有するから定数時間で済む。
+     */
     public Continuation(Continuation other) {
-        stack = new ArrayDeque<Step> (other.stack);
+        this();
+        other.freeze();
+        other.epoch = new Object();
+        parent = other.parent;
         winds = other.winds;
     }
 
     /** この継続にステップが無ければ真。 */
     public boolean isEmpty() {
-        return stack.isEmpty();
+        return sp == 0 && parent == null;
     }
 
     /** この継続のステップ数 */
     public int size() {
-        return stack.size();
+        return (parent == null) ? sp : sp + parent.depth;
     }
 
     @Override public String toString() {
         var ss = new ArrayList<String> ();
-        for (Step step: stack)
-            ss.add(step.op + " " + LL.str(step.val));
+        for (int i = sp - 1; i >= 0; i--)
+            ss.add(OPS[ops[i]] + " " + LL.str(vals[i]));
+        for (Segment seg = parent; seg != null; seg = seg.parent)
+            for (int i = seg.count - 1; i >= 0; i--)
+                ss.add(OPS[seg.ops[i]] + " " + LL.str(seg.vals[i]));
         return "#<" + String.join("\n\t  ", ss) + ">";
     }
 
+    /** 最上部を凍結して parent に加える。最上部は空になる。 */
+    private void freeze() {
+        if (sp > 0) {
+            parent = new Segment(ops, vals, sp, parent);
+            ops = NO_OPS;
+            vals = NO_VALS;
+            sp = 0;
+        }
+    }
+
+    /** 空の最上部へ parent の先頭の高々 INITIAL_CAPACITY 個のステップを
+     * コピーする。parent そのものは変更しない。
+     */
+    private void refill() {
+        Segment seg = parent;
+        int n = Math.min(seg.count, INITIAL_CAPACITY);
+        int from = seg.count - n;
+        if (ops.length < n) {
+            ops = new byte[INITIAL_CAPACITY];
+            vals = new Object[INITIAL_CAPACITY];
+        }
+        System.arraycopy(seg.ops, from, ops, 0, n);
+        System.arraycopy(seg.vals, from, vals, 0, n);
+        sp = n;
+        parent = (from == 0) ? seg.parent :
+            new Segment(seg.ops, seg.vals, from, seg.parent);
+    }
+
     /** 継続の末尾に１ステップを加える。 */
     void push(ContOp op, Object value) { // internal
-        stack.push(new Step(op, value));
+        if (sp == ops.length) {
+            int n = Math.max(sp * 2, INITIAL_CAPACITY);
+            ops = Arrays.copyOf(ops, n);
+            vals = Arrays.copyOf(vals, n);
+        }
+        ops[sp] = (byte) op.ordinal();
+        vals[sp] = value;
+        sp++;
     }
 
-    /** 継続の末尾から１ステップを取り出す。 */
-    Step pop() {                // internal
-        return stack.pop();
+    /** 継続の末尾のステップの演算子。
+     * 継続が空でないときに限り呼び出すことができる。
+     * 続けて {@link #topValue()} と {@link #pop()} を呼び出せるように，
+     * 必要ならば凍結された部分からステップを最上部へとコピーする。
+     */
+    ContOp topOp() {            // internal
+        if (sp == 0)
+            refill();
+        return OPS[ops[sp - 1]];
+    }
+
+    /** 継続の末尾のステップの値。topOp() の後に呼び出す。 */
+    Object topValue() {         // internal
+        return vals[sp - 1];
+    }
+
+    /** 継続の末尾のステップの値を，そのステップを取り除かずに得る。
+     * 続けて {@link #setTopValue(Object)} を呼び出すことができる。
+     */
+    Object peekValue() {        // internal
+        if (sp == 0)
+            refill();
+        return vals[sp - 1];
+    }
+
+    /** 継続の末尾のステップの値を置き換える。peekValue() の後に呼び出す。
+     */
+    void setTopValue(Object value) { // internal
+        vals[sp - 1] = value;
+    }
+
+    /** この継続の現在の識別子。
+     * 継続が捕捉されたり他の継続のコピーへと切り替わったりするたびに
+     * 新しい値になる。継続が積んでいる可変なオブジェクトを，
+     * 捕捉された継続と共有しているかどうかを判定するのに使う。
+     */
+    Object epoch() {            // internal
+        return epoch;
+    }
+
+    /** 継続の末尾から１ステップを取り除く。topOp() の後に呼び出す。 */
+    void pop() {                // internal
+        sp--;
+        vals[sp] = null;        // 値を早めに GC の対象にする
     }
 
     /** 末尾呼び出しでなければ継続の末尾に RESTORE_ENV を加える。 */
     void pushRestoreEnv(Cell env) { // internal
-        Step last = stack.peek();
-        if (last == null || last.op != ContOp.RESTORE_ENV)
+        byte last;
+        if (sp > 0)
+            last = ops[sp - 1];
+        else if (parent != null)
+            last = parent.ops[parent.count - 1];
+        else
+            last = -1;
+        if (last != RESTORE_ENV)
             push(ContOp.RESTORE_ENV, env);
     }
 
@@ -96,28 +236,140 @@ public class Continuation {
      * 継続に DEFER が積まれる。
      */
     void copyFrom(Continuation other) { // internal
-        stack = new ArrayDeque<Step> (other.stack);
-        if (winds != other.winds) {
+        other.freeze();
+        ops = NO_OPS;
+        vals = NO_VALS;
+        sp = 0;
+        parent = other.parent;
+        epoch = new Object();
+        switchWinds(other.winds);
+    }
+
+    /** 現在の winds から to へと切り替える。
+     * to と共通でない this.winds の thunk3 と to の thunk1 を
+     * 継続に DEFER として積む。
+     */
+    private void switchWinds(Cell to) {
+        if (winds != to) {
             if (winds == null) {
-                pushThunk1s(null, other.winds);
-            } else if (other.winds == null) {
+                pushThunk1s(null, to);
+            } else if (to == null) {
                 pushThunk3s(winds, null);
             } else {
                 var others = new HashSet<Cell> ();
                 Cell j;
-                for (j = other.winds; j != null; j = (Cell) j.cdr)
+                for (j = to; j != null; j = (Cell) j.cdr)
                     others.add(j);
                 for (j = winds; j != null; j = (Cell) j.cdr)
                     if (others.contains(j))
                         break;
-                // winds と other.winds は j 以降で共通
-                pushThunk1s(j, other.winds);
+                // winds と to は j 以降で共通
+                pushThunk1s(j, to);
                 pushThunk3s(winds, j);
             }
-            winds = other.winds;
+            winds = to;
+        }
+    }
+
+    /** 継続の末尾に END_ESCAPE を積み，それを目印とする脱出継続を作る。
+     */
+    Escape pushEscape() {       // internal
+        var esc = new Escape(this, size() + 1, winds, null);
+        push(ContOp.END_ESCAPE, esc);
+        return esc;
+    }
+
+    /** 継続の末尾に on-err の目印として END_ESCAPE を積む。
+     * 目印までのステップの評価中にエラーが起きたら，
+     * {@link #unwindToHandler(EvalException)} が errfn を呼び出させる。
+     */
+    void pushHandler(Object errfn) { // internal
+        push(ContOp.END_ESCAPE, new Escape(this, size() + 1, winds, errfn));
+    }
+
+    /** 最も内側の on-err の目印とその後のステップを継続から取り除き，
+     * その errfn を ex に適用するステップを積む。
+     * 目印の後に積まれた winds の thunk3 は errfn より先に呼び出される。
+     * @return 目印が見つかれば真，見つからなければ継続を変えずに偽
+     */
+    boolean unwindToHandler(EvalException ex) { // internal
+        Escape esc = findHandler();
+        if (esc == null)
+            return false;
+        cutTo(esc.depth - 1);   // errfn のエラーは外側の目印へ
+        push(ContOp.CALL_BACK, new Cell(esc.errfn, new Cell(ex, null)));
+        switchWinds(esc.winds);
+        return true;
+    }
+
+    // 継続の末尾に最も近い on-err の目印を探す。
+    private Escape findHandler() {
+        for (int i = sp - 1; i >= 0; i--)
+            if (isHandler(ops[i], vals[i]))
+                return (Escape) vals[i];
+        for (Segment seg = parent; seg != null; seg = seg.parent)
+            for (int i = seg.count - 1; i >= 0; i--)
+                if (isHandler(seg.ops[i], seg.vals[i]))
+                    return (Escape) seg.vals[i];
+        return null;
+    }
+
+    // 他の評価器で積まれた目印 (別の Continuation の esc) は無視する。
+    private boolean isHandler(byte op, Object val) {
+        return op == END_ESCAPE && ((Escape) val).errfn != null &&
+            ((Escape) val).k == this;
+    }
+
+    /** 脱出継続 esc の目印まで継続からステップを取り除く。
+     * このとき esc を作った後に積まれた winds の thunk3 を
+     * 入れ子の内から外の順に継続に DEFER として積む。
+     * スタックのコピーはしない。
+     * @throws EvalException esc の目印がもう継続にない。
+     */
+    void escapeTo(Escape esc) { // internal
+        if (esc.k != this || ! hasMarkAt(esc.depth, esc))
+            throw new EvalException ("escape continuation expired", esc);
+        cutTo(esc.depth);
+        switchWinds(esc.winds);
+    }
+
+    // 継続のステップ数が depth になるまで末尾からステップを取り除く。
+    private void cutTo(int depth) {
+        int excess = size() - depth;
+        if (excess <= sp) {
+            Arrays.fill(vals, sp - excess, sp, null);
+            sp -= excess;
+        } else {
+            excess -= sp;
+            Arrays.fill(vals, 0, sp, null);
+            sp = 0;
+            Segment seg = parent;
+            while (seg.count <= excess) {
+                excess -= seg.count;
+                seg = seg.parent;
+            }
+            parent = (excess == 0) ? seg :
+                new Segment(seg.ops, seg.vals, seg.count - excess,
+                            seg.parent);
         }
     }
 
+    // 下から数えて depth 番目のステップが esc を値とする END_ESCAPE か？
+    private boolean hasMarkAt(int depth, Escape esc) {
+        if (size() < depth)
+            return false;
+        int i = depth - 1;
+        int base = (parent == null) ? 0 : parent.depth;
+        if (i >= base)
+            return (vals[i - base] == esc &&
+                    ops[i - base] == END_ESCAPE);
+        Segment seg = parent;
+        while (i < seg.depth - seg.count)
+            seg = seg.parent;
+        i -= seg.depth - seg.count;
+        return seg.vals[i] == esc && seg.ops[i] == END_ESCAPE;
+    }
+
     private void pushThunk1s(Cell j, Cell to) {
         if (j != to) {
             var thunk1 = ((Cell) to.car).car;
@@ -1,7 +1,9 @@
-// H22.09.29/R02.05.05 (鈴)
+// H22.09.29/R08.10.18 (鈴)
 // cf. https://github.com/nukata/little-scheme-in-java - Eval.java
 package arc;
 
+import java.math.BigInteger;
+
 /** 左辺値を表す。与えられた値を所定の変数に代入する。 */
 @FunctionalInterface interface Setter {
     void set(Object args);
@@ -31,203 +33,24 @@ public class Eval {
     /** 与えられた式を与えられた環境で評価する。
      */
     public Object evaluate() {
-        var symbols = interp.getSymbolTable();
         try {
             for (;;) {
-                for (;;) {
-                    if (exp instanceof Symbol) {
-                        if (symbols.containsKey(exp))
-                            exp = symbols.get(exp);
-                        else if (! (exp instanceof Symbol.Keyword))
-                            throw new EvalException ("void variable", exp);
-                        break;
-                    } else if (exp instanceof Arg) {
-                        exp = ((Arg) exp).getValue(env);
-                        break;
-                    } else if (exp instanceof Cell) {
-                        Cell xc = (Cell) exp;
-                        Object fn = xc.car;
-                        Cell arg = xc.getCdrCell();
-                        if (fn instanceof Symbol.Keyword) {
-                            if (fn == LL.S_QUOTE) { // (quote e)
-                                if (arg == null || arg.cdr != null)
-                                    throw new EvalException ("bad quote");
-                                exp = arg.car;
-                                break;
-                            } else if (fn == LL.S_IF) { // (if c1 e1 [c2...en])
-                                exp = arg.car;
-                                k.push(ContOp.THEN, arg.cdr);
-                            } else if (fn == LL.S_DO) { // (_do e1 e2 ...)
-                                if (arg == null) {
-                                    exp = null;
-                                    break;
-                                } else {
-                                    exp = arg.car;
-                                    if (arg.cdr != null)
-                                        k.push(ContOp.DO, arg.cdr);
-                                }
-                            } else if (fn == LL.S_ASSIGN) { // (assign v e)
-                                Object lval = arg.car;
-                                Setter setter;
-                                if (lval instanceof Symbol) {
-                                    var sym = (Symbol) lval;
-                                    setter = (x)-> symbols.put(sym, x);
-                                } else if (lval instanceof Arg) {
-                                    var arg1 = (Arg) lval;
-                                    var env1 = env;
-                                    setter = (x)-> arg1.setValue(x, env1);
-                                } else {
-                                    throw new LL.VariableExpectedException
-                                        (lval);
-                                }
-                                Cell j = arg.getCdrCell();
-                                if (j == null || j.cdr != null)
-                                    throw new EvalException
-                                        ("one RHS expected");
-                                exp = j.car;
-                                k.push(ContOp.ASSIGN, setter);
-                            } else if (fn == LL.S_FN || fn == LL.S_MACRO) {
-                                exp = interp.compile(xc, env);
-                                break;
-                            } else if (fn == LL.S_QUASIQUOTE) {
-                                if (arg == null || arg.cdr != null)
-                                    throw new EvalException ("bad quasiquote");
-                                exp = QQ.expand(arg.car);
-                            } else {
-                                throw new EvalException ("bad keyword", fn);
-                            }
-                        } else {    // (fun arg...)
-                            exp = fn;
-                            k.push(ContOp.APPLY, arg);
-                        }
-                    } else if (exp instanceof Fn) {
-                        Fn f = (Fn) exp;
-                        if (f.env == LL.NONE) // まだ評価前のラムダ式ならば
-                            exp = f.copyWith(env); // 現時点の環境を捕捉する
-                        break;
-                    } else {
-                        break;      // 数や文字列や null など
-                    }
-                }
-                LOOP2:
-                for (;;) {
-                    if (k.isEmpty())
-                        return exp;
-                    Step step = k.pop();
-                    Object x = step.val;
-                    switch (step.op) {
-                    case THEN: // x は (e1 c2 e2 .. en) か (e1 en) か (e1)
-                        {  
-                            Cell c = (Cell) x;
-                            if (exp != null) {
-                                // (if t e1 ..) => e1
-                                exp = c.car;
-                                break LOOP2;
-                            } else {
-                                c = c.getCdrCell();
-                                if (c == null) {
-                                    // (if nil e1) => nil
-                                    exp = null;
-                                    break;
-                                } else if (c.cdr == null) {
-                                    // (if nil e1 en) => en
-                                    exp = c.car;
-                                    break LOOP2;
-                                } else {
-                                    // (if nil e1 c2 e2 ..) => (if c2 e2 ..)
-                                    exp = c.car;
-                                    k.push(ContOp.THEN, c.cdr);
-                                    break LOOP2;
-                                }
-                            }
-                        }
-                    case DO:     // x は (e ...)
-                        {
-                            Cell c = (Cell) x;
-                            if (c.cdr != null)
-                                k.push(ContOp.DO, c.cdr);
-                            exp = c.car;
-                            break LOOP2;
-                        }
-                    case ASSIGN: // exp を代入関数 x で変数に代入する
-                        {
-                            var setter = (Setter) x;
-                            setter.set(exp);
-                            break;
-                        }
-                    case APPLY: // exp は評価済み関数, x は未評価の引数列
-                        if (exp instanceof Fn.Macro) {
-                            k.push(ContOp.EVAL_AGAIN, null);
-                            applyFunction(exp, (Cell) x);
-                            break;
-                        } else if (x == null) {
-                            applyFunction(exp, null);
-                            break;
-                        } else {
-                            k.push(ContOp.APPLY_FUN, exp);
-                            Cell c = (Cell) x;
-                            exp = c.car;
-                            pushArgs(c.getCdrCell());
-                            k.push(ContOp.CONS_ARGS, null);
-                            break LOOP2;
-                        }
-                    case CONS_ARGS: // exp は新しく評価した引数
-                        {           // x は評価済みの引数列
-                            Cell args = new Cell(exp, x);
-                            step = k.pop();
-                            exp = step.val;
-                            switch (step.op) {
-                            case EVAL_ARG: // exp は次に評価すべき引数
-                                k.push(ContOp.CONS_ARGS, args);
-                                break LOOP2;
-                            case APPLY_FUN: // exp は評価済み関数
-                                args = nreverse(args);
-                                applyFunction(exp, args);
-                                break;
-                            default:
-                                throw new EvalException ("bad op: " + step.op);
-                            }
-                            break;
-                        }
-                    case RESTORE_ENV: // 現在の環境を捨てて x を環境とする
-                        env = (Cell) x;
-                        break;
-                    case EVAL_AGAIN: // 現在の exp を再び評価にかける
-                        break LOOP2;
-                    case EVAL_VAL: // 現在の exp を捨てて x を評価にかける
-                        exp = x;
-                        break LOOP2;
-                    case RESULT_VAL: // 現在の exp を捨てて x を結果とする
-                        exp = x;
-                        break;
-                    case POP_WIND:
-                        {
-                            Cell w = k.popWind();
-                            if (x != w.cdr)
-                                throw new RuntimeException
-                                    ("bad wind " + LL.str(w) + ": " +
-                                     LL.str(x));
-                        }
-                        // POP_WIND はそのまま DEFER へと続く。
-                    case DEFER: // 現在の exp を結果としつつ x を呼び出す
-                        if (x != null) {
-                            k.push(ContOp.RESULT_VAL, exp);
-                            Cell c = (Cell) x;
-                            applyFunction(c.car, (Cell) c.cdr);
-                        }
-                        break;
-                    default:
-                        throw new EvalException ("unexpected op: " + step.op);
+                try {
+                    return run();
+                } catch (RuntimeException ex) {
+                    var x = (ex instanceof EvalException) ?
+                        ((EvalException) ex) :
+                        new EvalException(ex.toString(), ex);
+                    // on-err の中ならば継続をそこまで戻して続ける。
+                    if (k.unwindToHandler(x)) {
+                        exp = null; // 失敗した式を再び評価しない
+                        continue;
                     }
+                    x.getTrace().add(LL.str(exp) + " in " + LL.str(env)
+                                     + "\n\t" + LL.str(k));
+                    throw x;
                 }
             }
-        } catch (RuntimeException ex) {
-            var x = (ex instanceof EvalException) ?
-                ((EvalException) ex) :
-                new EvalException(ex.toString(), ex);
-            x.getTrace().add(LL.str(exp) + " in " + LL.str(env)
-                             + "\n\t" + LL.str(k));
-            throw x;
         } finally {
             // 継続に含まれる winds 呼び出しを実行する。
             // この呼び出しは環境非依存であることを仮定する。
@@ -239,7 +62,529 @@ public class Eval {
         }
     }
 
+    // 継続が空になるまで評価を進め，その値を返す。
+    private Object run() {
+        for (;;) {
+            if (! reduce()) // exp はまだ値になっていない
+                continue;
+            do {
+                if (k.isEmpty())
+                    return exp;
+            } while (! resume()); // 継続が式の評価を求めるまで
+        }
+    }
+
+    // exp を一段評価する。exp が値になったならば真を返す。
+    // 偽ならば exp は次に評価すべき式になっている。
+    private boolean reduce() {
+        if (exp instanceof Node) {
+            return evalNode((Node) exp);
+        } else if (exp instanceof Arg) {
+            exp = ((Arg) exp).getValue(env);
+            return true;
+        } else if (exp instanceof GlobalRef) {
+            exp = ((GlobalRef) exp).getValue();
+            return true;
+        } else if (exp instanceof Symbol) {
+            if (! (exp instanceof Symbol.Keyword))
+                exp = interp.getGlobalValue((Symbol) exp);
+            return true;
+        } else if (exp instanceof Cell) {
+            Cell xc = (Cell) exp;
+            Object fn = xc.car;
+            Cell arg = xc.getCdrCell();
+            if (fn instanceof Symbol.Keyword) {
+                if (fn == LL.S_QUOTE) { // (quote e)
+                    if (arg == null || arg.cdr != null)
+                        throw new EvalException ("bad quote");
+                    exp = arg.car;
+                    return true;
+                } else if (fn == LL.S_IF) { // (if c1 e1 [c2...en])
+                    exp = arg.car;
+                    k.push(ContOp.THEN, arg.cdr);
+                } else if (fn == LL.S_DO) { // (_do e1 e2 ...)
+                    if (arg == null) {
+                        exp = null;
+                        return true;
+                    } else {
+                        exp = arg.car;
+                        if (arg.cdr != null)
+                            k.push(ContOp.DO, arg.cdr);
+                    }
+                } else if (fn == LL.S_ASSIGN) { // (assign v e)
+                    Object lval = arg.car;
+                    Object setter; // GlobalRef または Setter
+                    if (lval instanceof GlobalRef) {
+                        setter = lval;
+                    } else if (lval instanceof Symbol) {
+                        var sym = (Symbol) lval;
+                        setter = interp.getGlobalRef(sym);
+                    } else if (lval instanceof Arg) {
+                        var arg1 = (Arg) lval;
+                        var env1 = env;
+                        setter = (Setter) (x)->
+                            arg1.setValue(x, env1);
+                    } else {
+                        throw new LL.VariableExpectedException
+                            (lval);
+                    }
+                    Cell j = arg.getCdrCell();
+                    if (j == null || j.cdr != null)
+                        throw new EvalException
+                            ("one RHS expected");
+                    exp = j.car;
+                    k.push(ContOp.ASSIGN, setter);
+                } else if (fn == LL.S_FN || fn == LL.S_MACRO) {
+                    exp = interp.compile(xc, env);
+                    return true;
+                } else if (fn == LL.S_QUASIQUOTE) {
+                    if (arg == null || arg.cdr != null)
+                        throw new EvalException ("bad quasiquote");
+                    exp = QQ.expand(arg.car);
+                } else {
+                    throw new EvalException ("bad keyword", fn);
+                }
+            } else {    // (fun arg...)
+                exp = fn;
+                k.push(ContOp.APPLY, arg);
+            }
+        } else if (exp instanceof Fn) {
+            Fn f = (Fn) exp;
+            if (f.env == LL.NONE) // まだ評価前のラムダ式ならば
+                exp = f.copyWith(env); // 現時点の環境を捕捉する
+            return true;
+        } else {
+            return true;      // 数や文字列や null など
+        }
+        return false;
+    }
+
+    // 値 exp を継続の先頭のステップに渡す。
+    // 次に exp を式として評価すべきならば真を返す。
+    private boolean resume() {
+        ContOp op = k.topOp();
+        Object x = k.topValue();
+        k.pop();
+        switch (op) {
+        case DO:     // x は (e ...)
+            {
+                Cell c = (Cell) x;
+                if (c.cdr != null)
+                    k.push(ContOp.DO, c.cdr);
+                exp = c.car;
+                return true;
+            }
+        case ASSIGN: // exp を変数 x か代入関数 x で代入する
+            if (x instanceof GlobalRef) {
+                ((GlobalRef) x).setValue(exp);
+            } else if (x instanceof Arg) { // Assign ノードから
+                ((Arg) x).setValue(exp, env);
+            } else {
+                var setter = (Setter) x;
+                setter.set(exp);
+            }
+            return false;
+        case STORE_ARG: // exp は新しく評価した引数
+            {           // x は残りの未評価の引数列
+                var af = (ArgFrame) k.peekValue();
+                if (af.epoch != k.epoch()) { // 捕捉されていた？
+                    af = af.copy(k.epoch());
+                    k.setTopValue(af);
+                }
+                af.store(exp);
+                if (x != null) {
+                    Cell c = (Cell) x;
+                    exp = c.car;
+                    k.push(ContOp.STORE_ARG, c.cdr);
+                    return true;
+                }
+                k.topOp();
+                k.pop(); // APPLY_FRAME
+                exp = af.fun; // 例外のときトレースに示す。
+                applyFrame(af.fun, af.complete());
+                return false;
+            }
+        case APPLY_1: // exp は評価済みの唯一の引数
+            {             // x は評価済みの関数
+                var f = (Function) x;
+                var frame = new Object[f.arity()];
+                frame[0] = exp;
+                exp = f; // 例外のときトレースに示す。
+                applyFrame(f, f.completeFrame(frame, 1, null));
+                return false;
+            }
+        case BRANCH: // exp は評価済みの条件, x は If ノード
+            {
+                var f = (Node.If) x;
+                exp = (exp != null) ? f.then : f.otherwise;
+                return true;
+            }
+        case APPLY_CALL: // exp は評価済み関数, x は Call ノード
+            return ! applyCall(exp, (Node.Call) x);
+        case BINARY_ARG2: // exp は評価済みの第１引数
+            if (isReady(x)) { // x は未評価の第２引数
+                k.topOp();
+                var fun = (Intrinsic) k.topValue();
+                k.pop(); // BINARY_FUN
+                exp = fun.call2(exp, valueOf(x), this);
+                return false;
+            }
+            k.push(ContOp.BINARY_LEFT, exp);
+            exp = x;
+            return true;
+        case BINARY_LEFT: // exp は評価済みの第２引数
+            {             // x は評価済みの第１引数
+                k.topOp();
+                var fun = (Intrinsic) k.topValue();
+                k.pop(); // BINARY_FUN
+                exp = fun.call2(x, exp, this);
+                return false;
+            }
+        case RESTORE_ENV: // 現在の環境を捨てて x を環境とする
+            env = (Cell) x;
+            return false;
+        default:
+            return resumeRare(op, x);
+        }
+    }
+
+    // resume のうち，ノードの木の評価ではまれなステップ
+    private boolean resumeRare(ContOp op, Object x) {
+        switch (op) {
+        case THEN: // x は (e1 c2 e2 .. en) か (e1 en) か (e1)
+            {  
+                Cell c = (Cell) x;
+                if (exp != null) {
+                    // (if t e1 ..) => e1
+                    exp = c.car;
+                    return true;
+                } else {
+                    c = c.getCdrCell();
+                    if (c == null) {
+                        // (if nil e1) => nil
+                        exp = null;
+                        return false;
+                    } else if (c.cdr == null) {
+                        // (if nil e1 en) => en
+                        exp = c.car;
+                        return true;
+                    } else {
+                        // (if nil e1 c2 e2 ..) => (if c2 e2 ..)
+                        exp = c.car;
+                        k.push(ContOp.THEN, c.cdr);
+                        return true;
+                    }
+                }
+            }
+        case APPLY: // exp は評価済み関数, x は未評価の引数列
+            if (exp instanceof Fn.Macro) {
+                k.push(ContOp.EVAL_AGAIN, null);
+                x = GlobalRef.unresolve(x);
+                applyFunction(exp, (Cell) x);
+                return false;
+            } else if (x == null) {
+                applyFunction(exp, null);
+                return false;
+            } else if (takesFrame(exp)) {
+                Cell c = (Cell) x;
+                var f = (Function) exp;
+                exp = c.car;
+                if (c.cdr == null && f.positionalArity() != 0) {
+                    // 実引数が１個ならば評価後にフレームを作る。
+                    k.push(ContOp.APPLY_1, f);
+                    return true;
+                }
+                // 実引数を評価するたびにフレームへ格納する。
+                var af = new ArgFrame(f, k.epoch());
+                k.push(ContOp.APPLY_FRAME, af);
+                k.push(ContOp.STORE_ARG, c.cdr);
+                return true;
+            } else {
+                k.push(ContOp.APPLY_FUN, exp);
+                Cell c = (Cell) x;
+                exp = c.car;
+                pushArgs(c.getCdrCell());
+                k.push(ContOp.CONS_ARGS, null);
+                return true;
+            }
+        case CONS_ARGS: // exp は新しく評価した引数
+            {           // x は評価済みの引数列
+                Cell args = new Cell(exp, x);
+                op = k.topOp();
+                exp = k.topValue();
+                k.pop();
+                switch (op) {
+                case EVAL_ARG: // exp は次に評価すべき引数
+                    k.push(ContOp.CONS_ARGS, args);
+                    return true;
+                case APPLY_FUN: // exp は評価済み関数
+                    args = nreverse(args);
+                    applyFunction(exp, args);
+                    return false;
+                default:
+                    throw new EvalException ("bad op: " + op);
+                }
+            }
+        case CALL_BACK: // x は (評価済み関数 . 評価済み引数列)
+            {
+                Cell c = (Cell) x;
+                applyFunction(c.car, (Cell) c.cdr);
+                return false;
+            }
+        case RESUME: // exp は呼び戻した関数の結果
+            exp = ((Resume) x).resume(exp, this);
+            return false;
+        case EVAL_AGAIN: // 現在の exp を再び評価にかける
+            return true;
+        case EVAL_VAL: // 現在の exp を捨てて x を評価にかける
+            exp = x;
+            return true;
+        case RESULT_VAL: // 現在の exp を捨てて x を結果とする
+            exp = x;
+            return false;
+        case END_ESCAPE: // 脱出継続 x の動的範囲の終わり
+            return false;
+        case POP_WIND:
+            {
+                Cell w = k.popWind();
+                if (x != w.cdr)
+                    throw new RuntimeException
+                        ("bad wind " + LL.str(w) + ": " +
+                         LL.str(x));
+            }
+            // POP_WIND はそのまま DEFER へと続く。
+        case DEFER: // 現在の exp を結果としつつ x を呼び出す
+            if (x != null) {
+                k.push(ContOp.RESULT_VAL, exp);
+                Cell c = (Cell) x;
+                applyFunction(c.car, (Cell) c.cdr);
+            }
+            return false;
+        default:
+            throw new EvalException ("unexpected op: " + op);
+        }
+    }
+
 
+    // ノード n を評価する。exp が値になったならば真を返す。
+    // 偽ならば exp は次に評価すべき式になっている。
+    // 条件や関数や実引数が Node.isSimple を満たすならば，
+    // 継続にステップを積まずにその場で値を求める。
+    private boolean evalNode(Node n) {
+        switch (n.kind) {
+        case Node.CONST:
+        case Node.INTRINSIC_CALL:
+        case Node.INLINED:
+            if (isStale(n)) {   // 最適化後に再定義された
+                exp = deoptimized(n);
+                return false;
+            }
+            exp = valueOf(n);
+            return true;
+        case Node.IF:
+            {
+                var f = (Node.If) n;
+                if (f.testIsSimple && ! isStale(f.test)) {
+                    exp = (valueOf(f.test) != null) ? f.then : f.otherwise;
+                } else {
+                    exp = f.test;
+                    k.push(ContOp.BRANCH, f);
+                }
+                return false;
+            }
+        case Node.DO:
+            {
+                Cell body = ((Node.Do) n).body;
+                exp = body.car;
+                if (body.cdr != null)
+                    k.push(ContOp.DO, body.cdr);
+                return false;
+            }
+        case Node.ASSIGN:
+            {
+                var a = (Node.Assign) n;
+                if (isReady(a.value)) {
+                    exp = valueOf(a.value);
+                    if (a.lval instanceof GlobalRef)
+                        ((GlobalRef) a.lval).setValue(exp);
+                    else
+                        ((Arg) a.lval).setValue(exp, env);
+                    return true;
+                }
+                // 右辺の評価を終えた時点で env は元に戻っているから
+                // Arg をそのまま継続に積んでよい。
+                exp = a.value;
+                k.push(ContOp.ASSIGN, a.lval);
+                return false;
+            }
+        case Node.CALL:
+            {
+                var c = (Node.Call) n;
+                if (c.fnIsSimple && ! isStale(c.fn))
+                    return applyCall(valueOf(c.fn), c);
+                exp = c.fn;
+                k.push(ContOp.APPLY_CALL, c);
+                return false;
+            }
+        default:
+            throw new EvalException ("bad node kind: " + n.kind);
+        }
+    }
+
+    // 式 x が Optimizer の置き換えたノードで，その前提が崩れていれば真。
+    // 一度の最適化で作ったノードは前提を共有するから，入れ子の式を
+    // 調べ直す必要はない。そのような x は，その場で値を求める代わりに
+    // deoptimized(x) を主ループで評価する。こうすれば評価器を入れ子に
+    // せず，x の一部だけを評価してから元の呼出しを評価し直すこともない。
+    private static boolean isStale(Object x) {
+        return (x instanceof Node.Specialized) &&
+            ! ((Node.Specialized) x).assumption.valid;
+    }
+
+    // isStale(x) である式 x の代わりに評価する最適化前の呼出し
+    private static Node deoptimized(Object x) {
+        return ((Node.Specialized) x).original;
+    }
+
+    // 式 x の値をその場で求めてよいならば真
+    private static boolean isReady(Object x) {
+        return Node.isSimple(x) && ! isStale(x);
+    }
+
+    // 実引数の式の列 args の値をすべてその場で求めてよいならば真
+    private static boolean areReady(Cell args) {
+        for (Cell j = args; j != null; j = (Cell) j.cdr)
+            if (isStale(j.car))
+                return false;
+        return true;
+    }
+
+    // Node.isSimple を満たす式 x の値を求める。
+    // 前提が崩れていないことは呼出し元が isStale で確かめておく。
+    // 入れ子の式は同じ前提を共有するから，ここでは調べない。
+    private Object valueOf(Object x) {
+        if (x instanceof Arg) {
+            return ((Arg) x).getValue(env);
+        } else if (x instanceof GlobalRef) {
+            return ((GlobalRef) x).getValue();
+        } else if (x instanceof Node) {
+            switch (((Node) x).kind) {
+            case Node.CONST:
+                return ((Node.Const) x).value;
+            case Node.INTRINSIC_CALL:
+                {
+                    var ic = (Node.IntrinsicCall) x;
+                    if (ic.argc == 2 && ic.fun.binary != null)
+                        return ic.fun.call2(valueOf(ic.args.car),
+                                            valueOf(((Cell) ic.args.cdr).car),
+                                            this);
+                    return ic.fun.call(simpleFrame(ic.fun, ic.args), this);
+                }
+            default:
+                {
+                    var in = (Node.Inlined) x;
+                    return valueOf(in.expr);
+                }
+            }
+        } else if (x instanceof Fn) {
+            Fn f = (Fn) x;
+            return (f.env == LL.NONE) ? f.copyWith(env) : f;
+        } else {
+            return x;
+        }
+    }
+
+    // 評価済み関数 fun を Call ノード c の実引数に適用する。
+    // exp が値になったならば真を返す。
+    // 偽ならば exp は次に評価すべき実引数になっている。
+    private boolean applyCall(Object fun, Node.Call c) {
+        if (fun instanceof Fn.Macro) { // 実行時に初めてマクロと判明した
+            k.push(ContOp.EVAL_AGAIN, null);
+            applyFunction(fun, c.macroArgs());
+            return true;
+        }
+        Cell args = c.args;
+        if (args == null) {
+            applyFunction(fun, null);
+            return true;
+        }
+        if (takesFrame(fun)) {
+            var f = (Function) fun;
+            if (c.argc == 2 && fun instanceof Intrinsic &&
+                ((Intrinsic) fun).binary != null) // (+ x y) など
+                return applyBinary((Intrinsic) fun, args);
+            if (c.argsAreSimple && areReady(args)) {
+                // 全実引数をその場でフレームへ格納する。
+                applyFrame(f, simpleFrame(f, args));
+                return true;
+            }
+            exp = args.car;
+            if (args.cdr == null && f.positionalArity() != 0) {
+                k.push(ContOp.APPLY_1, f);
+                return false;
+            }
+            var af = new ArgFrame(f, k.epoch());
+            k.push(ContOp.APPLY_FRAME, af);
+            k.push(ContOp.STORE_ARG, args.cdr);
+            return false;
+        }
+        if (c.argsAreSimple && areReady(args)) {
+            applyFunction(fun, args.mapcar(this::valueOf));
+            return true;
+        }
+        k.push(ContOp.APPLY_FUN, fun);
+        exp = args.car;
+        pushArgs(args.getCdrCell());
+        k.push(ContOp.CONS_ARGS, null);
+        return false;
+    }
+
+    // ２引数に特化した本体を持つ組込み関数 fun を２個の実引数の式の列
+    // args に適用する。フレームも rest 引数のリストも作らない。
+    // 戻り値は applyCall と同じ。
+    private boolean applyBinary(Intrinsic fun, Cell args) {
+        Object x = args.car;
+        Object y = ((Cell) args.cdr).car;
+        if (isReady(x)) {
+            Object xv = valueOf(x);
+            if (isReady(y)) {
+                exp = fun.call2(xv, valueOf(y), this);
+                return true;
+            }
+            k.push(ContOp.BINARY_FUN, fun);
+            k.push(ContOp.BINARY_LEFT, xv);
+            exp = y;
+            return false;
+        }
+        k.push(ContOp.BINARY_FUN, fun);
+        k.push(ContOp.BINARY_ARG2, y);
+        exp = x;
+        return false;
+    }
+
+    // Node.isSimple を満たす実引数の式の列 args から f のフレームを作る。
+    private Object[] simpleFrame(Function f, Cell args) {
+        var frame = new Object[f.arity()];
+        int positional = f.positionalArity();
+        int n = 0;
+        Cell restHead = null;
+        Cell restTail = null;
+        for (Cell j = args; j != null; j = (Cell) j.cdr) {
+            Object x = valueOf(j.car);
+            if (n < positional) {
+                frame[n++] = x;
+            } else {
+                var c = new Cell(x, null);
+                if (restHead == null)
+                    restHead = c;
+                else
+                    restTail.cdr = c;
+                restTail = c;
+            }
+        }
+        return f.completeFrame(frame, n, restHead);
+    }
+
     // (a b c) => k.push(EVAL_ARG, c); k.push(EVAL_ARG, b); k.push(EVAL_ARG, a)
     // arc.arc の pr 関数の実装は実引数が左から順に評価されることを仮定して
     // いるから，スタックには逆順に評価前実引数を積み上げる。
@@ -272,6 +617,23 @@ public class Eval {
             return new Cell(j.car, constructApplyArg((Cell) j.cdr));
     }
 
+    /** Body2 による組込み関数の本体から関数 fun を実引数列 args に
+     * 適用し，その結果を next に渡すように継続を整える。
+     * next が null ならば，その結果をそのまま組込み関数の結果とする。
+     * 本体はこのメソッドの戻り値をそのまま自分の戻り値とすること。
+     * fun は本体から戻った後で評価器の継続の上で呼び出されるから，
+     * その中での ccc や例外は Arc の関数から呼び出したときと同じように
+     * 振る舞う。
+     * ccc で捕捉された継続は何度でも再開されうるから，next は
+     * 捕捉した状態を破壊的に変更してはならない。
+     */
+    Object callBack(Object fun, Cell args, Resume next) {
+        if (next != null)
+            k.push(ContOp.RESUME, next);
+        k.push(ContOp.CALL_BACK, new Cell(fun, args));
+        return null;
+    }
+
     // 評価済み関数 fun を評価済み引数列 arg に適用する。
     private void applyFunction(Object fun, Cell arg) {
         for (;;) {
@@ -280,6 +642,11 @@ public class Eval {
                 fun = arg.car;
                 var cont = new Continuation(k);
                 arg = new Cell(cont, null);
+            } else if (fun == LL.ECC_VAL) {
+                k.pushRestoreEnv(env);
+                fun = arg.car;
+                var esc = k.pushEscape();
+                arg = new Cell(esc, null);
             } else if (fun == LL.APPLY_VAL) {
                 fun = arg.car;
                 arg = constructApplyArg((Cell) arg.cdr);
@@ -289,29 +656,113 @@ public class Eval {
         }
         if (fun instanceof Function) {
             Object[] frame = ((Function) fun).makeFrame(arg);
-            if (fun instanceof Fn) {
-                Fn fn = (Fn) fun;
-                k.pushRestoreEnv(env);
-                env = (frame == null) ? fn.env : new Cell(frame, fn.env);
-                Cell body = fn.body;
-                if (body != null)
-                    k.push(ContOp.DO, body);
-                if (fn.defaultExps != null)
-                    pushEvalDefaults(fn, frame);
-                exp = null;
-                // System.err.println("k = " + LL.str(k)); // DEBUG
-                // System.err.println("env = " + LL.str(env)); // DEBUG
-            } else {
-                exp = ((Intrinsic) fun).call(frame, this);
-            }
+            applyFrame((Function) fun, frame);
         } else if (fun instanceof Continuation) {
             k.copyFrom((Continuation) fun);
             exp = arg.car;
+        } else if (fun instanceof Continuation.Escape) {
+            k.escapeTo((Continuation.Escape) fun);
+            exp = arg.car;
         } else {
             exp = evalElementAccess(fun, arg);
         }
     }
 
+    // 関数 fun を完成したフレーム frame に適用する。
+    private void applyFrame(Function fun, Object[] frame) {
+        if (fun instanceof Fn) {
+            Fn fn = (Fn) fun;
+            fn.profile.count();
+            k.pushRestoreEnv(env);
+            env = (frame == null) ? fn.env : new Cell(frame, fn.env);
+            Cell body = fn.body;
+            if (body != null)
+                k.push(ContOp.DO, body);
+            if (fn.defaultExps != null)
+                pushEvalDefaults(fn, frame);
+            exp = null;
+            // System.err.println("k = " + LL.str(k)); // DEBUG
+            // System.err.println("env = " + LL.str(env)); // DEBUG
+        } else {
+            exp = ((Intrinsic) fun).call(frame, this);
+        }
+    }
+
+    // 評価済みの実引数をフレームへ直接格納してよい関数か？
+    // ccc, ecc, apply は実引数のリストを必要とするから除外する。
+    private static boolean takesFrame(Object fun) {
+        return (fun instanceof Function &&
+                fun != LL.CCC_VAL && fun != LL.ECC_VAL &&
+                fun != LL.APPLY_VAL && ((Function) fun).arity() != 0);
+    }
+
+    /** 評価中の実引数を格納していくフレーム.
+     * 引数列を Cell で作って反転してからフレームへコピーする代わりに，
+     * 評価した実引数を順に呼び出し先のフレームへ格納する。
+     * rest 引数に当たる実引数だけを Cell のリストにする。
+     * <p>
+     * 継続が捕捉された後は，格納する前に copy して捕捉された継続との
+     * 共有を断つ。したがって，捕捉された継続が後で再開されても，
+     * その時点までに格納した実引数だけがフレームに残っている。
+     */
+    private static final class ArgFrame {
+        final Function fun;
+        final Object epoch;     // これを作ったときの継続の識別子
+        final Object[] frame;
+        int count;              // 格納済みの実引数の個数
+        Cell restHead;          // rest 引数のリストの先頭
+        Cell restTail;          // rest 引数のリストの末尾
+
+        ArgFrame(Function fun, Object epoch) {
+            this.fun = fun;
+            this.epoch = epoch;
+            this.frame = new Object[fun.arity()];
+        }
+
+        // 格納済みの実引数を新しい識別子とともにコピーする。
+        ArgFrame copy(Object newEpoch) {
+            var af = new ArgFrame(fun, newEpoch);
+            System.arraycopy(frame, 0, af.frame, 0, frame.length);
+            af.count = count;
+            for (Cell j = restHead; j != null; j = (Cell) j.cdr)
+                af.addRest(j.car);
+            return af;
+        }
+
+        // 次の実引数を格納する。
+        void store(Object x) {
+            if (count < fun.positionalArity())
+                frame[count] = x;
+            else
+                addRest(x);
+            count++;
+        }
+
+        private void addRest(Object x) {
+            var c = new Cell(x, null);
+            if (restHead == null)
+                restHead = c;
+            else
+                restTail.cdr = c;
+            restTail = c;
+        }
+
+        // 省略時値と rest 引数を補ってフレームを完成させる。
+        Object[] complete() {
+            int n = Math.min(count, fun.positionalArity());
+            return fun.completeFrame(frame, n, restHead);
+        }
+
+        // トレースのための表示: 関数と格納済みの実引数
+        @Override public String toString() {
+            Cell args = restHead;
+            for (int i = Math.min(count, fun.positionalArity()) - 1;
+                 i >= 0; i--)
+                args = new Cell(frame[i], args);
+            return LL.str(fun) + " " + LL.str(args);
+        }
+    } // ArgFrame
+
     // フレーム内の省略時値の評価を継続に追加する。
     // 省略時値が左から順に評価されるようにスタックする。
     private void pushEvalDefaults(Fn fn, Object[] frame) {
@@ -332,12 +783,12 @@ public class Eval {
         if (arg != null && arg.cdr == null) {
             Object index = arg.car;
             if (x == null) {  // NB (car nil) => nil, (cdr nil) => nil
-                if (index instanceof Integer)
+                if (intIndex(index, x) != null)
                     return null;
             } else if (x instanceof Cell) {
                 Cell xc = (Cell) x;
-                if (index instanceof Integer) {
-                    int n = (Integer) index;
+                Integer n = intIndex(index, x);
+                if (n != null) {
                     for (int i = 0; i < n; i++) {
                         xc = xc.getCdrCell();
                         if (xc == null)
@@ -347,8 +798,8 @@ public class Eval {
                 }
             } else if (x instanceof char[]) {
                 char[] s = (char[]) x;
-                if (index instanceof Integer) {
-                    int i = (Integer) index;
+                Integer i = intIndex(index, x);
+                if (i != null) {
                     try {
                         return s[i];
                     } catch (ArrayIndexOutOfBoundsException ex) {
@@ -356,10 +807,34 @@ public class Eval {
                             ("index " + i + " for " + LL.str(s));
                     }
                 }
+            } else if (x instanceof Vec) {
+                Integer i = intIndex(index, x);
+                if (i != null)
+                    return ((Vec) x).get(i);
+            } else if (BuiltinArray.isArray(x)) {
+                Integer i = intIndex(index, x);
+                if (i != null)
+                    return BuiltinArray.get(x, i);
             } else if (x instanceof Table) {
                 return ((Table) x).get(index);
             }
         }
         throw new EvalException ("not applicable", x);
     }
+
+    // 添字 index を int にする。整数でなければ null を返す。
+    // Long や BigInteger も int に収まれば受け付け，さもなければ
+    // x の添字の範囲外としてエラーにする。
+    private static Integer intIndex(Object index, Object x) {
+        if (index instanceof Integer)
+            return (Integer) index;
+        if (index instanceof Long || index instanceof BigInteger) {
+            var n = (Number) index;
+            if ((index instanceof Long) ? n.longValue() == n.intValue()
+                : ((BigInteger) index).bitLength() < 32)
+                return n.intValue();
+            throw new EvalException ("index " + index + " for", x);
+        }
+        return null;
+    }
 } // Eval
@@ -1,4 +1,4 @@
-// H22.09.28/R02.05.02 (鈴)
+// H22.09.28/R08.10.18 (鈴)
 package arc;
 
 import java.util.HashMap;
@@ -16,17 +16,28 @@ public class Fn extends Function
         関数本体のなかに出現する大域変数以外の自由変数の値を与える。*/
     final Cell env;
 
+    /** 呼出し回数と最適化の状態。コピーの間で共有される。*/
+    final Optimizer.Profile profile;
+
     /** 一から作る。*/
     public Fn (int fixedArgs, Object[] defaultExps, boolean hasRest,
                Cell body, Cell env) {
-        super (fixedArgs, defaultExps, hasRest);
-        this.body = body;
-        this.env = env;
+        this (fixedArgs, defaultExps, hasRest, body, env,
+              new Optimizer.Profile (body));
     }
 
     /** 環境だけ新しく与えて，コピーを作る。*/
     public Fn (Fn orig, Cell env) {
-        this (orig.fixedArgs, orig.defaultExps, orig.hasRest, orig.body, env);
+        this (orig.fixedArgs, orig.defaultExps, orig.hasRest, orig.body, env,
+              orig.profile);
+    }
+
+    private Fn (int fixedArgs, Object[] defaultExps, boolean hasRest,
+                Cell body, Cell env, Optimizer.Profile profile) {
+        super (fixedArgs, defaultExps, hasRest);
+        this.body = body;
+        this.env = env;
+        this.profile = profile;
     }
 
     /** 環境だけ新しく与えて，自分のコピーを作る。*/
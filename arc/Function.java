@@ -1,4 +1,4 @@
-// H22.09.08/R02.05.01 (鈴)
+// H22.09.08/R08.10.18 (鈴)
 package arc;
 
 /** Arc から普通に使われる関数の共通基底クラス */
@@ -33,6 +33,19 @@ public abstract class Function
         this.arity = n;
     }
 
+    /** 引数の個数 (＝フレームの大きさ) を返す。
+     */
+    final int arity() {
+        return arity;
+    }
+
+    /** rest 引数を除く引数の個数，つまり固定引数と省略可能引数の
+     * 個数の和を返す。
+     */
+    final int positionalArity() {
+        return (hasRest) ? arity - 1 : arity;
+    }
+
     /** 引数の個数を (rest 引数があるときは符号を反転して) 返す。
      */
     public final int carity() { // combined arity: 名前に深い意味はない
@@ -86,6 +99,46 @@ public abstract class Function
         return frame;          // これがローカル変数のフレームになる。
     }
 
+    /** 先頭から n 個の実引数を格納済みのフレームを完成させる。
+     * makeFrame(Cell) と同じく，省略可能引数に対する省略時値を
+     * Default でラップし，rest 引数として rest を格納する。
+     * @param frame 大きさが arity() のフレーム。ただし，n が
+     *   positionalArity() 以上ならば，その先頭の positionalArity() 個の
+     *   要素だけが実引数を格納している。
+     * @param n 実引数の個数 (rest を除く)
+     * @param rest 残りの実引数からなるリスト または null
+     * @return 完成したフレーム，つまり frame
+     * @throws EvalException 引数の個数不一致があった。
+     */
+    final Object[] completeFrame(Object[] frame, int n, Cell rest)
+        throws EvalException
+    {
+        if (n < fixedArgs) {
+            String msg = argOrArgs(fixedArgs) + " expected" + atLeast()
+                + "for " + shortName();
+            throw new EvalException (msg, argList(frame, n, rest));
+        }
+        if (rest != null && ! hasRest) {
+            String msg = argOrArgs(arity) + " expected" + atMost()
+                + "for " + shortName();
+            throw new EvalException (msg, argList(frame, n, rest));
+        }
+        int positional = positionalArity();
+        for (int i = n; i < positional; i++) // 省略された省略可能引数
+            frame[i] = new Default (defaultExps[i - fixedArgs]);
+        if (hasRest)
+            frame[arity - 1] = rest;
+        return frame;
+    }
+
+    // エラー表示のため，フレームの実引数を Arc のリストに戻す。
+    private static Cell argList(Object[] frame, int n, Cell rest) {
+        Cell list = rest;
+        for (int i = n - 1; i >= 0; i--)
+            list = new Cell (frame[i], list);
+        return list;
+    }
+
     private String argOrArgs(int n) {
         return (n == 1) ? "1 arg" : (n + " args");
     }
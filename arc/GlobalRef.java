@@ -0,0 +1,95 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+
+/** コンパイル後の大域変数。
+ * インタープリタごとに各シンボルに対して高々一つ作られ，
+ * その大域変数の値を保持する。
+ * ラムダ式やマクロ式の本体の中のシンボルはコンパイル時にこれに置き換え
+ * られるから，大域変数の参照は表を引かずにフィールドを読むだけで済む。
+ * <p>
+ * new-thread による複数のスレッドから読み書きされるから，値は volatile
+ * とし，代入は不可分な交換で行う。したがって読出しはロックを要さず，
+ * あるスレッドの代入は直ちに他のスレッドから見える。
+ * @see IInterp#getGlobalRef(Symbol)
+ */
+public final class GlobalRef
+{
+    /** まだ値が代入されていないことを示す値 */
+    static final Object UNBOUND = new Object () {
+            public String toString() { return "#<unbound>"; }
+        };
+
+    private static final VarHandle VALUE;
+    static {
+        try {
+            VALUE = MethodHandles.lookup()
+                .findVarHandle(GlobalRef.class, "value", Object.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError (ex);
+        }
+    }
+
+    final Symbol symbol;
+    volatile Object value = UNBOUND;
+
+    /** この変数の値を前提として最適化された本体 (Optimizer.LOCK で保護) */
+    volatile ArrayList<Optimizer.Profile> dependents;
+
+    GlobalRef (Symbol symbol) {
+        this.symbol = symbol;
+    }
+
+    @Override public String toString() {
+        return symbol.toString();
+    }
+
+    /** 値が代入されていれば真 */
+    boolean isBound() {
+        return value != UNBOUND;
+    }
+
+    /** 値を返す。
+     * @throws EvalException 値がまだ代入されていない。
+     */
+    Object getValue() {
+        Object x = value;
+        if (x == UNBOUND)
+            throw new EvalException ("void variable", symbol);
+        return x;
+    }
+
+    /** 値を代入し，直前の値を返す。
+     * 値の交換は不可分だから，同時に代入しても直前の値は一つに定まる。
+     */
+    Object setValue(Object x) {
+        Object old = VALUE.getAndSet(this, x);
+        if (dependents != null && old != x)
+            Optimizer.invalidate(this);
+        return old;
+    }
+
+    // Optimizer.LOCK を保持して呼び出すこと。
+    void addDependent(Optimizer.Profile p) {
+        var list = dependents;
+        if (list == null)
+            dependents = list = new ArrayList<>();
+        if (! list.contains(p))
+            list.add(p);
+    }
+
+    /** 式の中の GlobalRef を元のシンボルに戻す。
+     * 実行時に初めてマクロと判明した式の引数をマクロに渡すときに使う。
+     */
+    static Object unresolve(Object j) {
+        if (j instanceof GlobalRef)
+            return ((GlobalRef) j).symbol;
+        else if (j instanceof Cell)
+            return ((Cell) j).mapcar(GlobalRef::unresolve);
+        else
+            return j;
+    }
+} // GlobalRef
@@ -1,4 +1,4 @@
-// H22.09.22/R02.05.01 (鈴)
+// H22.09.22/R08.10.18 (鈴)
 package arc;
 
 import java.util.Map;
@@ -13,6 +13,17 @@ public interface IInterp
      */
     Map<Symbol, Object> getSymbolTable();
 
+    /** シンボルに対する大域変数を得る。なければ値のない大域変数を作る。
+     * 大域変数の値は {@link #getSymbolTable()} の表と共有される。
+     * @throws EvalException シンボルがキーワードだった。
+     */
+    GlobalRef getGlobalRef(Symbol sym);
+
+    /** シンボルの大域変数の値を得る。大域変数を作ることはない。
+     * @throws EvalException 値がまだ代入されていない。
+     */
+    Object getGlobalValue(Symbol sym);
+
     /** Arc から入力するときに使う読み取り器を得る。
      */
     CharEnumerator getReader();
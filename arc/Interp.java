@@ -1,10 +1,16 @@
-// H22.09.29/R02.05.01 (鈴)
+// H22.09.29/R08.10.18 (鈴)
 package arc;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.Console;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -13,8 +19,13 @@ import java.io.PrintWriter;
  */
 public class Interp implements IInterp
 {
-    // シンボルから大域変数値への表
-    private final Map<Symbol, Object> symbols = new NameMap<Object> ();
+    // シンボルから大域変数への表。
+    // new-thread のスレッドと共有するから並行な表とし，読出しは
+    // ロックを要さない。値の読み書きは各 GlobalRef で行う。
+    private final Map<Symbol, GlobalRef> globals = new ConcurrentHashMap<> ();
+
+    // シンボルから大域変数値への表 (globals のビュー)
+    private final Map<Symbol, Object> symbols = new GlobalTable ();
 
     private CharEnumerator reader; // Arc から (read) するときに使う
     private PrintWriter writer;    // Arc から印字するときに使う
@@ -31,6 +42,83 @@ public class Interp implements IInterp
         }
     } // NameMap<T>
 
+    /** 大域変数の値の表としての globals のビュー.
+     * 値が代入されている大域変数だけをエントリとして見せる。
+     * put や get は GlobalRef の値を直接読み書きする。
+     */
+    private class GlobalTable extends AbstractMap<Symbol, Object>
+    {
+        @Override public boolean containsKey(Object k) {
+            GlobalRef ref = globals.get(k);
+            return ref != null && ref.isBound();
+        }
+
+        @Override public Object get(Object k) {
+            GlobalRef ref = globals.get(k);
+            if (ref == null)
+                return null;
+            Object x = ref.value;
+            return (x == GlobalRef.UNBOUND) ? null : x;
+        }
+
+        @Override public Object put(Symbol k, Object v) {
+            Object old = getGlobalRef(k).setValue(v);
+            return (old == GlobalRef.UNBOUND) ? null : old;
+        }
+
+        @Override public Object remove(Object k) {
+            GlobalRef ref = globals.get(k);
+            if (ref == null || ! ref.isBound())
+                return null;
+            Object old = ref.setValue(GlobalRef.UNBOUND);
+            return (old == GlobalRef.UNBOUND) ? null : old;
+        }
+
+        @Override public Set<Map.Entry<Symbol, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<Symbol, Object>> () {
+                @Override public int size() {
+                    int n = 0;
+                    for (GlobalRef ref: globals.values())
+                        if (ref.isBound())
+                            n++;
+                    return n;
+                }
+
+                @Override
+                public Iterator<Map.Entry<Symbol, Object>> iterator() {
+                    final var iter = globals.values().iterator();
+                    return new Iterator<Map.Entry<Symbol, Object>> () {
+                        Map.Entry<Symbol, Object> next = advance();
+
+                        // 他のスレッドが同時に代入しても，値は一度だけ読む。
+                        private Map.Entry<Symbol, Object> advance() {
+                            while (iter.hasNext()) {
+                                GlobalRef ref = iter.next();
+                                Object x = ref.value;
+                                if (x != GlobalRef.UNBOUND)
+                                    return new AbstractMap.SimpleImmutableEntry
+                                        <Symbol, Object> (ref.symbol, x);
+                            }
+                            return null;
+                        }
+
+                        public boolean hasNext() {
+                            return next != null;
+                        }
+
+                        public Map.Entry<Symbol, Object> next() {
+                            if (next == null)
+                                throw new NoSuchElementException ();
+                            var entry = next;
+                            next = advance();
+                            return entry;
+                        }
+                    };
+                }
+            };
+        }
+    } // GlobalTable
+
     // コンストラクタ
 
     /** 入出力に System.in, System.out, System.err を指定して構築する。
@@ -55,12 +143,33 @@ public class Interp implements IInterp
         symbols.put(Symbol.of("sig"), new Table ());
         symbols.put(LL.S_APPLY, LL.APPLY_VAL);
         symbols.put(Symbol.of("ccc"), LL.CCC_VAL);
+        symbols.put(Symbol.of("ecc"), LL.ECC_VAL);
     }
 
     @Override public Map<Symbol, Object> getSymbolTable() {
         return symbols;
     }
 
+    @Override public GlobalRef getGlobalRef(Symbol sym) {
+        GlobalRef ref = globals.get(sym);
+        if (ref == null) {
+            if (sym instanceof Symbol.Keyword)
+                throw new EvalException ("keyword not expected", sym);
+            // 同時に作られても一つの GlobalRef だけが使われる。
+            ref = globals.computeIfAbsent(sym, GlobalRef::new);
+        }
+        return ref;
+    }
+
+    // 式の評価で現れるシンボルごとに大域変数を作ると，一度でも評価した
+    // 未定義のシンボルを表が保持し続けるから，読出しでは作らない。
+    @Override public Object getGlobalValue(Symbol sym) {
+        GlobalRef ref = globals.get(sym);
+        if (ref == null)
+            throw new EvalException ("void variable", sym);
+        return ref.getValue();
+    }
+
     @Override public CharEnumerator getReader() {
         return reader;
     }
@@ -111,7 +220,8 @@ public class Interp implements IInterp
 
         if (defaultExps != null) // 省略時値の式をコンパイル
             for (int i = 0; i < defaultExps.length; i++)
-                defaultExps[i] = compileBody(defaultExps[i], table, arity);
+                defaultExps[i] = toNode(compileBody(defaultExps[i], table,
+                                                    arity));
 
         Cell body = arg.getCdrCell();
         for (Cell cell: nestedArgs) { // 入れ子の引数リストを解決
@@ -122,6 +232,8 @@ public class Interp implements IInterp
                                 // e.g. ((apply (fn (x y) ...) $G1))
         }
         body = (Cell) compileBody(body, table, arity); // 本体をコンパイル
+        if (body != null)
+            body = body.mapcar(Interp::toNode);
 
         if (j.car == LL.S_FN)
             return new Fn (fixedArgs, defaultExps, hasRest, body, env);
@@ -139,9 +251,15 @@ public class Interp implements IInterp
             body = scanForArgs(body, table);
         body = expandMacros(body, LL.MAX_MACRO_EXPS);
         body = compileInners(body);
+        body = resolveGlobals(body);
         return body;
     }
 
+    // 可能ならばコンパイル済みの式をノードの木に変換する。
+    private static Object toNode(Object x) {
+        return LL.COMPILE_NODES ? Node.of(x) : x;
+    }
+
     @Override
     public Object expandMacros(Object j, final int count) {
         if (j instanceof Cell) {
@@ -192,6 +310,29 @@ public class Interp implements IInterp
         }
     }
 
+    /** 式の中の大域変数のシンボルを GlobalRef に置き換える。
+     * 引用式と入れ子の Fn インスタンスの中には立ち入らない。
+     * キーワードはそのまま残す。
+     * @param j 元の式
+     * @return 置き換えた式
+     */
+    private Object resolveGlobals(Object j) {
+        if (j instanceof Symbol) {
+            if (j instanceof Symbol.Keyword)
+                return j;
+            else
+                return getGlobalRef((Symbol) j);
+        } else if (j instanceof Cell) {
+            Cell jc = (Cell) j;
+            if (jc.car == LL.S_QUOTE)
+                return j;
+            else
+                return jc.mapcar((x)-> resolveGlobals(x));
+        } else {
+            return j;
+        }
+    }
+
     /** 仮引数の表を作る。
      * より正確には，仮引数のシンボルをキーとし，
      * そのコンパイル結果の Arg インスタンスを値とする表を作る。
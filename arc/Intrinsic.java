@@ -1,4 +1,4 @@
-// H22.09.06/R02.05.02 (鈴)
+// H22.09.06/R08.10.18 (鈴)
 package arc;
 
 /** 組込み関数 */
@@ -30,10 +30,27 @@ public class Intrinsic extends Function
         Object call(Object[] args, Eval eval) throws Exception;
     }
 
+    /** ２個の実引数による呼出しに特化した Java による関数の本体.
+     * 整数どうしなど速く計算できる場合だけを扱い，rest 引数のリストを
+     * 作らずに結果を返す。扱えない場合は GENERIC を返す。
+     * そのときは改めて Body が呼び出される。
+     * 例外を投げてはならない。
+     * @see #call2(Object, Object, Eval)
+     */
+    @FunctionalInterface public static interface Binary {
+        Object call(Object x, Object y);
+    }
+
+    /** Binary が扱えなかったことを示す値 */
+    static final Object GENERIC = new Object ();
+
     final Body body;
 
     final Body2 body2;
 
+    /** ２引数の呼出しに特化した本体 または null */
+    Binary binary;
+
     /** オプションなしで構築する。
      * @param name 関数名
      * @param arity 固定引数の個数
@@ -91,6 +108,18 @@ public class Intrinsic extends Function
         }
     }
 
+    /** ２個の実引数で呼び出す。
+     * Binary があればまずそれを試し，扱えなければ call を呼び出す。
+     */
+    public Object call2(Object x, Object y, Eval eval) {
+        if (binary != null) {
+            Object result = binary.call(x, y);
+            if (result != GENERIC)
+                return result;
+        }
+        return call(makeFrame(new Cell (x, new Cell (y, null))), eval);
+    }
+
     /** 関数名を返す。 */
     public final String getName() {
         return name;
@@ -1,4 +1,4 @@
-// H22.09.28/R02.05.02 (鈴)
+// H22.09.28/R08.10.18 (鈴)
 package arc;
 
 import java.math.BigInteger;
@@ -24,6 +24,15 @@ public class LL
     /** 静的にマクロ展開する深さ */
     static int MAX_MACRO_EXPS = 200;
 
+    /** ラムダ式の本体をノードの木にコンパイルするか (偽ならリストのまま) */
+    static boolean COMPILE_NODES = true;
+
+    /** 本体を最適化するまでのラムダ式の呼出し回数 (0 ならば最適化しない) */
+    static int OPTIMIZE_THRESHOLD = 1000;
+
+    /** 初期化 Arc スクリプトの関数を Java による実装に置き換えるか */
+    static boolean NATIVE_PRELUDE = true;
+
 
     /** 初期化 Arc スクリプト名をセットする。 */
     public static void setPrelude(String value) { PRELUDE = value; }
@@ -34,6 +43,19 @@ public class LL
     /** 静的にマクロ展開する深さをセットする。 */
     public static void setMaxMacroExps(int value) { MAX_MACRO_EXPS = value; }
 
+    /** ラムダ式の本体をノードの木にコンパイルするかどうかをセットする。 */
+    public static void setCompileNodes(boolean value) { COMPILE_NODES = value; }
+
+    /** 本体を最適化するまでのラムダ式の呼出し回数をセットする。 */
+    public static void setOptimizeThreshold(int value) {
+        OPTIMIZE_THRESHOLD = value;
+    }
+
+    /** 初期化 Arc スクリプトの関数を置き換えるかどうかをセットする。 */
+    public static void setNativePrelude(boolean value) {
+        NATIVE_PRELUDE = value;
+    }
+
 
     // シンボルの定数
     static final Symbol
@@ -57,17 +79,22 @@ public class LL
         S_UNQUOTE = Symbol.of("unquote"),
         S_UNQUOTE_SPLICING = Symbol.of("unquote-splicing"),
 
+        S_CHAN = Symbol.of("chan"),
         S_CHAR = Symbol.of("char"),
+        S_DOUBLES = Symbol.of("doubles"),
         S_EXCEPTION = Symbol.of("exception"),
         S_INPUT = Symbol.of("input"),
         S_INT = Symbol.of("int"),
+        S_LONGS = Symbol.of("longs"),
         S_MAC = Symbol.of("mac"),
         S_NUM = Symbol.of("num"),
         S_OUTPUT = Symbol.of("output"),
         S_SOCKET = Symbol.of("socket"),
         S_STRING = Symbol.of("string"),
         S_SYM = Symbol.of("sym"),
-        S_TABLE = Symbol.of("table");
+        S_TABLE = Symbol.of("table"),
+        S_TASK = Symbol.of("task"),
+        S_VEC = Symbol.of("vec");
 
     /** Arc の中で EOF を表す値 */
     public static final Object EOF = new Object () {
@@ -89,6 +116,10 @@ public class LL
     static final Object CCC_VAL = 
         new Intrinsic("ccc", 1, "(ccc fn) => (fn current-continuation)", null);
 
+    /** Arc の中で ecc (脱出専用の call/cc) 関数を表す値 */
+    static final Object ECC_VAL =
+        new Intrinsic("ecc", 1, "(ecc fn) => (fn escape-continuation)", null);
+
     /** 変数があるべき場所に，変数がなかったことを知らせる例外
      */
     static class VariableExpectedException extends EvalException
@@ -0,0 +1,169 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** atomic-invoke と atomic-on-invoke のための排他ロック.
+ * atomic-on-invoke は対象のオブジェクトの同一性から STRIPES 本の
+ * ロックの一つを選んでかける。したがって，無関係なオブジェクトに
+ * 対する排他は (ハッシュ値が衝突しない限り) 互いに待たない。
+ * atomic-invoke は従来どおり JVM 全体で一つのロック GLOBAL をかける。
+ * <p>
+ * ロックは再入可能であり，ccc による脱出と再入に対しては
+ * {@link #DO_LOCK} と {@link #DO_UNLOCK} を winds に積んで対応する。
+ * 各ロックについて獲得の回数，待たされた回数，保持した時間を数える。
+ * <p>
+ * 入れ子の atomic-on-invoke や，その中の atomic-invoke は，別のロックを
+ * 保持したまま次のロックを待つ。ロックの番号はハッシュ値で決まるから
+ * 獲得の順序を揃えることはできない。そこで，別のロックを保持したまま
+ * 待つスレッドは，待ちの輪 (デッドロック) ができていないかを周期的に
+ * 調べ，できていたら EvalException を投げる。例外による脱出で winds の
+ * {@link #DO_UNLOCK} が呼ばれて保持していたロックが外れるから，
+ * 輪の残りのスレッドは先へ進める。
+ * @see Builtins
+ */
+final class Locks
+{
+    /** このクラスはインスタンスを作らない。*/
+    private Locks () {}
+
+    /** オブジェクトごとのロックの本数 (2 の冪) */
+    static final int STRIPES = 64;
+
+    /** atomic-invoke のためのロックの番号 */
+    static final int GLOBAL = STRIPES;
+
+    /** 保持しているスレッドを読み出せる再入可能ロック */
+    private static final class Lock extends ReentrantLock {
+        Thread owner() {
+            return getOwner();
+        }
+    } // Lock
+
+    private static final Lock[] locks = new Lock[STRIPES + 1];
+
+    // 別のロックを保持したままロックを待っているスレッドと，その番号
+    private static final ConcurrentHashMap<Thread, Integer> waiting =
+        new ConcurrentHashMap<> ();
+
+    // 待ちの輪を調べる間隔 (ミリ秒)
+    private static final long CHECK_MS = 50;
+
+    // 各ロックを最も外側で獲得した時刻 (保持するスレッドだけが読み書きする)
+    private static final long[] since = new long[STRIPES + 1];
+
+    private static final LongAdder acquisitions = new LongAdder ();
+    private static final LongAdder contentions = new LongAdder ();
+    private static final LongAdder holdNanos = new LongAdder ();
+
+    /** i 番目のロックをかける式 (_lock) からなる配列 */
+    static final Cell[] DO_LOCK = new Cell[STRIPES + 1];
+
+    /** i 番目のロックを外す式 (_unlock) からなる配列 */
+    static final Cell[] DO_UNLOCK = new Cell[STRIPES + 1];
+
+    static {
+        for (int i = 0; i <= STRIPES; i++) {
+            final int index = i;
+            locks[i] = new Lock ();
+            DO_LOCK[i] = new Cell(new Intrinsic ("_lock", 0, null, (a)-> {
+                        lock(index);
+                        return null;
+                    }), null);
+            DO_UNLOCK[i] = new Cell(new Intrinsic ("_unlock", 0, null, (a)-> {
+                        unlock(index);
+                        return null;
+                    }), null);
+        }
+    }
+
+    /** オブジェクト x に対するロックの番号 */
+    static int indexOf(Object x) {
+        int h = System.identityHashCode(x);
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /** i 番目のロックをかける。待たされたら数える。*/
+    static void lock(int i) {
+        Lock lock = locks[i];
+        if (! lock.tryLock()) {
+            contentions.increment();
+            if (holdsOther(i))
+                lockWatchingCycle(i);
+            else
+                lock.lock(); // 何も保持していなければ輪はできない
+        }
+        acquisitions.increment();
+        if (lock.getHoldCount() == 1)
+            since[i] = System.nanoTime();
+    }
+
+    // 現在のスレッドが i 番目以外のロックを保持しているか？
+    private static boolean holdsOther(int i) {
+        for (int j = 0; j <= STRIPES; j++)
+            if (j != i && locks[j].isHeldByCurrentThread())
+                return true;
+        return false;
+    }
+
+    // 待ちの輪を調べながら i 番目のロックを待つ。
+    // 競合する他スレッドの状態を読み違えて誤って輪と判定しないように，
+    // 続けて２回輪が見つかったときに限り例外を投げる。
+    private static void lockWatchingCycle(int i) {
+        Thread me = Thread.currentThread();
+        waiting.put(me, i);
+        try {
+            int found = 0;
+            while (! locks[i].tryLock(CHECK_MS, TimeUnit.MILLISECONDS)) {
+                found = inCycle(i, me) ? found + 1 : 0;
+                if (found == 2)
+                    throw new EvalException
+                        ("deadlock between atomic locks: waiting for " +
+                         ((i == GLOBAL) ? "atomic" : "atomic-on stripe " + i));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new EvalException ("interrupted while waiting for lock");
+        } finally {
+            waiting.remove(me);
+        }
+    }
+
+    // i 番目のロックの保持者をたどって me に戻るか？
+    private static boolean inCycle(int i, Thread me) {
+        for (int n = waiting.size(); n >= 0; n--) {
+            Thread t = locks[i].owner();
+            if (t == null)
+                return false;
+            if (t == me)
+                return true;
+            Integer j = waiting.get(t);
+            if (j == null)
+                return false;
+            i = j;
+        }
+        return false;
+    }
+
+    /** i 番目のロックを外す。最も外側ならば保持した時間を加える。*/
+    static void unlock(int i) {
+        ReentrantLock lock = locks[i];
+        if (lock.getHoldCount() == 1)
+            holdNanos.add(System.nanoTime() - since[i]);
+        lock.unlock();
+    }
+
+    /** (lock-stats) の値として統計の表を作る。
+     * キーは acquisitions, contentions, hold-time-ms である。
+     */
+    static Table stats() {
+        var t = new Table ();
+        t.put(Symbol.of("acquisitions"), BuiltinMath.reg(acquisitions.sum()));
+        t.put(Symbol.of("contentions"), BuiltinMath.reg(contentions.sum()));
+        t.put(Symbol.of("hold-time-ms"), holdNanos.sum() / 1e6);
+        return t;
+    }
+} // Locks
@@ -1,4 +1,4 @@
-// H22.09.28/R02.05.02 (鈴)
+// H22.09.28/R08.10.18 (鈴)
 package arc;
 
 import java.io.FileInputStream;
@@ -14,6 +14,8 @@ public class Main
      * <li> このクラスと同じ場所にある PRELUDE ファイルを UTF-8 で読んで
      *      {@link IInterp#run(ILines, IReceiver)} する。
      *      def, let 等が定義される。
+     * <li> PRELUDE で定義された関数のうち map1, rev 等を
+     *      {@link BuiltinsPrelude#install} で Java による実装に置き換える。
      * </ol>
      * @param interp 初期化の対象となる Lisp インタープリタ
      */
@@ -22,6 +24,8 @@ public class Main
         var prelude = new LinesFromInputStream
             (LL.class.getResourceAsStream(LL.PRELUDE));
         interp.run(prelude, null);
+        if (LL.NATIVE_PRELUDE)
+            BuiltinsPrelude.install(interp);
     }
 
     /** 単独の Lisp インタープリタとしての主プログラムのサンプル実装.
@@ -58,6 +62,7 @@ public class Main
             }
             interp.run(lines, receiver);
         }
+        Task.awaitAll();        // spawn したタスクの終わりを待つ。
     }
 
     /*
@@ -0,0 +1,265 @@
+// R08.10.18 (鈴)
+package arc;
+
+/** コンパイル後の式を表す実行可能なノード.
+ * ラムダ式やマクロ式の本体の各式は，大域変数を解決した後で，
+ * 定数，if，_do，assign，関数呼び出しの各ノードからなる木に変換される。
+ * 評価器は式の形をその都度調べる代わりに kind で直接分岐する。
+ * 局所変数 (Arg)，大域変数 (GlobalRef)，入れ子のラムダ式 (Fn) は
+ * そのまま木の葉になる。
+ * <p>
+ * 各ノードは変換前の式 form を保持する。印字にはそれを使う。
+ * @see Interp#compile(Cell, Cell)
+ */
+abstract class Node
+{
+    static final int CONST = 0, IF = 1, DO = 2, ASSIGN = 3, CALL = 4,
+        INTRINSIC_CALL = 5, INLINED = 6;
+
+    /** ノードの種類 */
+    final int kind;
+
+    /** 変換前の式 */
+    final Object form;
+
+    Node (int kind, Object form) {
+        this.kind = kind;
+        this.form = form;
+    }
+
+    @Override public String toString() {
+        return LL.str(form);
+    }
+
+    /** 式をノードの木に変換する。
+     * 変換できない形の式 (構文上の誤りを含む式など) はそのまま残し，
+     * 評価時にリストとして解釈させる。
+     * @param x 大域変数を解決済みの式
+     * @return ノードまたは元の式
+     */
+    static Object of(Object x) {
+        if (! (x instanceof Cell))
+            return x;
+        Cell xc = (Cell) x;
+        Object fn = xc.car;
+        if (! isProperList(xc.cdr))
+            return x;
+        Cell arg = (Cell) xc.cdr;
+        if (fn instanceof Symbol.Keyword) {
+            if (fn == LL.S_QUOTE) { // (quote e)
+                if (arg != null && arg.cdr == null)
+                    return new Const (arg.car, x);
+            } else if (fn == LL.S_IF) { // (if c1 e1 [c2...en])
+                if (arg != null && arg.cdr != null)
+                    return makeIf(arg, x);
+            } else if (fn == LL.S_DO) { // (_do e1 e2 ...)
+                if (arg == null)
+                    return new Const (null, x);
+                return new Do (arg.mapcar(Node::of), x);
+            } else if (fn == LL.S_ASSIGN) { // (assign v e)
+                if (arg != null && arg.cdr instanceof Cell &&
+                    ((Cell) arg.cdr).cdr == null) {
+                    Object lval = arg.car;
+                    if (lval instanceof GlobalRef || lval instanceof Arg)
+                        return new Assign (lval, of(((Cell) arg.cdr).car), x);
+                }
+            }
+            return x;
+        } else {                // (fun arg...)
+            Cell args = (arg == null) ? null : arg.mapcar(Node::of);
+            return new Call (of(fn), args, xc);
+        }
+    }
+
+    // (if c1 e1 c2 e2 ... en) => If(c1, e1, If(c2, e2, ... en))
+    private static Object makeIf(Cell arg, Object form) {
+        Object test = of(arg.car);
+        Cell rest = (Cell) arg.cdr;
+        Object then = of(rest.car);
+        Cell more = (Cell) rest.cdr;
+        Object otherwise;
+        if (more == null)
+            otherwise = null;
+        else if (more.cdr == null)
+            otherwise = of(more.car);
+        else
+            otherwise = makeIf(more, new Cell (LL.S_IF, more));
+        return new If (test, then, otherwise, form);
+    }
+
+    private static boolean isProperList(Object j) {
+        while (j instanceof Cell)
+            j = ((Cell) j).cdr;
+        return j == null;
+    }
+
+    /** 継続を使わずに，その場で値が決まる式ならば真。
+     * すなわち局所変数，大域変数，定数，入れ子のラムダ式，
+     * および Optimizer が作った IntrinsicCall と Inlined ならば真。
+     */
+    static boolean isSimple(Object x) {
+        if (x instanceof Node) {
+            int kind = ((Node) x).kind;
+            return kind == CONST || kind == INTRINSIC_CALL || kind == INLINED;
+        }
+        return ! (x instanceof Cell || x instanceof Symbol);
+    }
+
+    private static boolean areSimple(Cell j) {
+        for (; j != null; j = (Cell) j.cdr)
+            if (! isSimple(j.car))
+                return false;
+        return true;
+    }
+
+
+    /** (quote e) */
+    static final class Const extends Node {
+        final Object value;
+
+        Const (Object value, Object form) {
+            super (CONST, form);
+            this.value = value;
+        }
+    } // Const
+
+    /** (if test then otherwise) */
+    static final class If extends Node {
+        final Object test;
+        final Object then;
+        final Object otherwise;
+        final boolean testIsSimple;
+
+        If (Object test, Object then, Object otherwise, Object form) {
+            super (IF, form);
+            this.test = test;
+            this.then = then;
+            this.otherwise = otherwise;
+            this.testIsSimple = isSimple(test);
+        }
+    } // If
+
+    /** (_do e1 e2 ...) */
+    static final class Do extends Node {
+        final Cell body;
+
+        Do (Cell body, Object form) {
+            super (DO, form);
+            this.body = body;
+        }
+    } // Do
+
+    /** (assign v e) ただし v は GlobalRef または Arg */
+    static final class Assign extends Node {
+        final Object lval;
+        final Object value;
+
+        Assign (Object lval, Object value, Object form) {
+            super (ASSIGN, form);
+            this.lval = lval;
+            this.value = value;
+        }
+    } // Assign
+
+    /** (fun arg...) */
+    static final class Call extends Node {
+        final Object fn;
+        final Cell args;        // 各引数の式のリスト
+        final int argc;
+        final boolean fnIsSimple;
+        final boolean argsAreSimple;
+
+        Call (Object fn, Cell args, Cell form) {
+            super (CALL, form);
+            this.fn = fn;
+            this.args = args;
+            int n = 0;
+            for (Cell j = args; j != null; j = (Cell) j.cdr)
+                n++;
+            this.argc = n;
+            this.fnIsSimple = isSimple(fn);
+            this.argsAreSimple = areSimple(args);
+        }
+
+        /** 実行時にマクロと判明したときにマクロに渡す引数の並び */
+        Cell macroArgs() {
+            return (Cell) GlobalRef.unresolve(((Cell) form).cdr);
+        }
+    } // Call
+
+    /** Optimizer が一つの本体を最適化したときの前提.
+     * そのとき作ったノードはすべて同じ Assumption を共有する。
+     * 前提とした大域変数のどれかが再定義されたら Optimizer が valid を
+     * 偽にするから，評価器は valid を読むだけで前提が崩れたと分かる。
+     */
+    static final class Assumption {
+        volatile boolean valid = true;
+    } // Assumption
+
+    /** Optimizer が Call を置き換えて作るノード.
+     * 前提が崩れていたら，代わりに元の呼出し original を評価する。
+     */
+    abstract static class Specialized extends Node {
+        final Assumption assumption;
+        final Call original;
+
+        Specialized (int kind, Assumption assumption, Call original) {
+            super (kind, original.form);
+            this.assumption = assumption;
+            this.original = original;
+        }
+    } // Specialized
+
+    /** Body を持つ組込み関数の呼出しで，実引数がすべて isSimple を満たすもの.
+     * 評価時には継続を使わずにその場で fun を呼び出す。
+     */
+    static final class IntrinsicCall extends Specialized {
+        final GlobalRef ref;
+        final Intrinsic fun;
+        final Cell args;
+        final int argc;
+
+        IntrinsicCall (GlobalRef ref, Intrinsic fun, Cell args,
+                       Assumption assumption, Call original) {
+            super (INTRINSIC_CALL, assumption, original);
+            this.ref = ref;
+            this.fun = fun;
+            this.args = args;
+            this.argc = original.argc;
+        }
+
+        /** 置き換えられるならば IntrinsicCall を，さもなければ null を
+         * 返す。実引数の個数が合わない呼出しは，評価時に従来どおり
+         * エラーとなるように置き換えない。
+         */
+        static IntrinsicCall make(GlobalRef ref, Intrinsic fun, Cell args,
+                                  Assumption assumption, Call original) {
+            if (fun.body == null || fun.defaultExps != null ||
+                fun.arity() == 0 || ! areSimple(args))
+                return null;
+            int argc = original.argc;
+            if (argc < fun.fixedArgs || (argc > fun.fixedArgs &&
+                                         ! fun.hasRest))
+                return null;
+            return new IntrinsicCall (ref, fun, args, assumption, original);
+        }
+    } // IntrinsicCall
+
+    /** 本体が単一の式からなる大域関数の呼出しを，その式で置き換えたもの.
+     * expr は呼出し元の環境で評価できるように仮引数を実引数の式で
+     * 置き換えてある。
+     */
+    static final class Inlined extends Specialized {
+        final GlobalRef ref;
+        final Fn fn;
+        final Object expr;
+
+        Inlined (GlobalRef ref, Fn fn, Object expr, Assumption assumption,
+                 Call original) {
+            super (INLINED, assumption, original);
+            this.ref = ref;
+            this.fn = fn;
+            this.expr = expr;
+        }
+    } // Inlined
+} // Node
@@ -0,0 +1,366 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** よく呼ばれるラムダ式の本体を最適化する第２層のコンパイラ.
+ * <p>
+ * 各ラムダ式は Profile で呼出し回数を数える。回数が
+ * LL.OPTIMIZE_THRESHOLD に達したら，背景のスレッドでその本体の
+ * ノードの木を作り直す。そのとき，大域変数が Body を持つ組込み関数を
+ * 指している呼出しで，実引数がすべて Node.isSimple を満たすものを
+ * Node.IntrinsicCall に置き換える。これは継続にステップを積まずに
+ * その場で値が求まるから，それを実引数とする外側の呼出しもまた
+ * フレームへ実引数を直接格納できるようになる。
+ * さらに，本体がそのような単一の式からなる大域関数 (例えば no) の
+ * 呼出しを Node.Inlined としてその式で置き換える (インライン展開)。
+ * <p>
+ * ccc や ecc などの継続を扱う呼出しは Body を持たないから置き換えられず，
+ * 従来どおり継続のステップとして評価される。
+ * <p>
+ * 背景のスレッドは作り直した木を Profile に置くだけで，それを本体へ
+ * 導入するのは次にその本体を呼び出す評価器のスレッドである。
+ * ノードのフィールドはすべて final だから，他のスレッドから見ても
+ * 導入された木が初期化の途中の姿で見えることはない。
+ * <p>
+ * 一度の最適化で作ったノードはすべて一つの Node.Assumption を共有する。
+ * 置き換えた呼出しが前提とする大域変数が再定義されたら，その
+ * Assumption を無効にして本体を元のノードの木に戻し (脱最適化)，
+ * 呼出し回数を数え直す。評価中のノードも無効になった前提を見て
+ * 元の呼出しを評価するから，評価器は前提ごとに値を調べ直さずに済む。
+ * 脱最適化が MAX_DEOPTS 回に達した本体は以後最適化しない。
+ * @see Eval#evaluate()
+ */
+final class Optimizer
+{
+    /** このクラスはインスタンスを作らない。*/
+    private Optimizer () {}
+
+    /** 脱最適化の回数の上限 */
+    static final int MAX_DEOPTS = 3;
+
+    /** インライン展開の入れ子の深さの上限 */
+    static final int MAX_INLINE_DEPTH = 3;
+
+    // 最適化の導入と脱最適化を排他するためのロック
+    private static final Object LOCK = new Object ();
+
+    // 最適化を行う背景のスレッド
+    private static final ExecutorService QUEUE =
+        Executors.newSingleThreadExecutor((r)-> {
+                var th = new Thread (r, "arc-optimizer");
+                th.setDaemon(true);
+                return th;
+            });
+
+
+    /** ラムダ式ごとの呼出し回数と最適化の状態.
+     * Fn#copyWith で作られた各クロージャは元の Fn と同じ Profile を共有する。
+     * pmap や spawn では複数のスレッドが同時に数えるから，呼出し回数は
+     * 不可分に増やす。しきい値に達した後は読むだけで書かない。
+     */
+    static final class Profile {
+        final Cell body;        // 最適化するときは各要素の car を置き換える
+        final AtomicInteger calls = new AtomicInteger ();
+        int deopts;             // 以下は LOCK で保護する
+        Object[] original;      // 最適化前の body の各要素 (導入中だけ非 null)
+        Node.Assumption assumption; // 導入中の最適化の前提
+        private volatile Pending pending; // 導入を待つ最適化の結果
+
+        Profile (Cell body) {
+            this.body = body;
+        }
+
+        /** 呼出しを１回数え，しきい値に達したら最適化を依頼する。
+         * 最適化の結果が届いていれば，本体を評価する前にそれを導入する。
+         */
+        void count() {
+            if (pending != null)
+                install();
+            int threshold = LL.OPTIMIZE_THRESHOLD;
+            // しきい値ちょうどの値を得るスレッドは一つだけだから，
+            // 最適化は一度だけ依頼される。
+            if (calls.get() < threshold &&
+                calls.incrementAndGet() == threshold && body != null)
+                QUEUE.execute(()-> optimize(this));
+        }
+
+        // 届いた最適化の結果を本体へ導入する。評価器のスレッドで呼ばれる。
+        // 先に依存を登録してから値を確かめるから，その間に代入されても
+        // 値の食い違いか invalidate のどちらかで必ず気づく。
+        private void install() {
+            synchronized (LOCK) {
+                Pending q = pending;
+                pending = null;
+                if (q == null || original != null)
+                    return;
+                for (int i = 0; i < q.deps.length; i += 2)
+                    ((GlobalRef) q.deps[i]).addDependent(this);
+                for (int i = 0; i < q.deps.length; i += 2) {
+                    var ref = (GlobalRef) q.deps[i];
+                    if (ref.value != q.deps[i + 1])
+                        return; // 最適化した後に再定義された
+                }
+                original = q.cars;
+                assumption = q.assumption;
+                int i = 0;
+                for (Cell j = body; j != null; j = (Cell) j.cdr)
+                    j.car = q.optimized[i++];
+            }
+        }
+
+        // LOCK を保持して呼び出すこと。
+        void deoptimize() {
+            if (original == null)
+                return;
+            int i = 0;
+            assumption.valid = false;
+            for (Cell j = body; j != null; j = (Cell) j.cdr)
+                j.car = original[i++];
+            original = null;
+            assumption = null;
+            if (++deopts < MAX_DEOPTS)
+                calls.set(0);   // 数え直す
+        }
+    } // Profile
+
+    /** 背景のスレッドから評価器のスレッドへ渡す最適化の結果 */
+    private static final class Pending {
+        final Object[] cars;      // 最適化前の body の各要素
+        final Object[] optimized; // 最適化後の body の各要素
+        final Object[] deps;      // GlobalRef と前提の値の対
+        final Node.Assumption assumption; // optimized のノードが共有する
+
+        Pending (Object[] cars, Object[] optimized, Object[] deps,
+                 Node.Assumption assumption) {
+            this.cars = cars;
+            this.optimized = optimized;
+            this.deps = deps;
+            this.assumption = assumption;
+        }
+    } // Pending
+
+
+    // 本体を最適化して，その結果を p に置く。背景のスレッドで実行される。
+    private static void optimize(Profile p) {
+        var deps = new ArrayList<Object>(); // GlobalRef と前提の値の対
+        var as = new Node.Assumption ();
+        var cars = new ArrayList<Object>();
+        var optimized = new ArrayList<Object>();
+        boolean changed = false;
+        for (Cell j = p.body; j != null; j = (Cell) j.cdr) {
+            Object x = j.car;
+            Object y = specialize(x, deps, as, 0);
+            cars.add(x);
+            optimized.add(y);
+            changed |= (x != y);
+        }
+        if (changed)
+            p.pending = new Pending (cars.toArray(), optimized.toArray(),
+                                     deps.toArray(), as);
+    }
+
+    /** 大域変数 ref の値が変わったので，それを前提とする本体を
+     * すべて脱最適化する。
+     */
+    static void invalidate(GlobalRef ref) {
+        synchronized (LOCK) {
+            ArrayList<Profile> dependents = ref.dependents;
+            ref.dependents = null;
+            if (dependents != null)
+                for (Profile p: dependents)
+                    p.deoptimize();
+        }
+    }
+
+    // ノードの木 x を最適化した木を返す。変化がなければ x 自身を返す。
+    // 置き換えた呼出しが前提とする大域変数とその値を deps に加え，
+    // 置き換えたノードには前提 as を持たせる。
+    private static Object specialize(Object x, ArrayList<Object> deps,
+                                     Node.Assumption as, int depth) {
+        if (! (x instanceof Node))
+            return x;
+        Node n = (Node) x;
+        switch (n.kind) {
+        case Node.IF:
+            {
+                var f = (Node.If) n;
+                Object test = specialize(f.test, deps, as, depth);
+                Object then = specialize(f.then, deps, as, depth);
+                Object otherwise = specialize(f.otherwise, deps, as, depth);
+                if (test == f.test && then == f.then &&
+                    otherwise == f.otherwise)
+                    return f;
+                return new Node.If (test, then, otherwise, f.form);
+            }
+        case Node.DO:
+            {
+                var d = (Node.Do) n;
+                Cell body = specializeAll(d.body, deps, as, depth);
+                return (body == d.body) ? d : new Node.Do (body, d.form);
+            }
+        case Node.ASSIGN:
+            {
+                var a = (Node.Assign) n;
+                Object value = specialize(a.value, deps, as, depth);
+                return (value == a.value) ? a :
+                    new Node.Assign (a.lval, value, a.form);
+            }
+        case Node.CALL:
+            {
+                var c = (Node.Call) n;
+                Object fn = specialize(c.fn, deps, as, depth);
+                Cell args = specializeAll(c.args, deps, as, depth);
+                if (fn instanceof GlobalRef) {
+                    var ref = (GlobalRef) fn;
+                    Object value = ref.value;
+                    if (value instanceof Intrinsic) {
+                        var ic = Node.IntrinsicCall.make
+                            (ref, (Intrinsic) value, args, as, c);
+                        if (ic != null) {
+                            deps.add(ref);
+                            deps.add(value);
+                            return ic;
+                        }
+                    } else if (value instanceof Fn &&
+                               ! (value instanceof Fn.Macro) &&
+                               depth < MAX_INLINE_DEPTH) {
+                        Object in = inline(ref, (Fn) value, args, c, deps,
+                                           as, depth);
+                        if (in != null)
+                            return in;
+                    }
+                }
+                if (fn == c.fn && args == c.args)
+                    return c;
+                return new Node.Call (fn, args, (Cell) c.form);
+            }
+        default:
+            return n;
+        }
+    }
+
+    // 式の列の各式を最適化する。変化がなければ j 自身を返す。
+    private static Cell specializeAll(Cell j, ArrayList<Object> deps,
+                                      Node.Assumption as, int depth) {
+        if (j == null)
+            return null;
+        Object car = specialize(j.car, deps, as, depth);
+        Cell cdr = specializeAll((Cell) j.cdr, deps, as, depth);
+        if (car == j.car && cdr == j.cdr)
+            return j;
+        return new Cell (car, cdr);
+    }
+
+    // 大域変数 ref が指す関数 f の呼出し c を f の本体の式で置き換えた
+    // Node.Inlined を返す。置き換えられなければ null を返す。
+    // f は大域環境で作られ，固定引数だけをとり，本体が単一の式から
+    // なるものに限る。実引数は副作用も失敗もなく何度評価してもよい
+    // 局所変数と定数に限る。本体の式は最適化した結果が isSimple を満たし，
+    // 自分の仮引数と大域変数と定数だけを参照するものに限る。
+    private static Object inline(GlobalRef ref, Fn f, Cell args, Node.Call c,
+                                 ArrayList<Object> deps, Node.Assumption as,
+                                 int depth) {
+        if (f.env != null || f.defaultExps != null || f.hasRest ||
+            f.fixedArgs != c.argc || c.argc == 0 ||
+            f.body == null || f.body.cdr != null)
+            return null;
+        var actuals = new Object[c.argc];
+        int i = 0;
+        for (Cell j = args; j != null; j = (Cell) j.cdr) {
+            Object a = j.car;
+            boolean ok = (a instanceof Node) ?
+                ((Node) a).kind == Node.CONST :
+                ! (a instanceof Cell || a instanceof Symbol ||
+                   a instanceof GlobalRef || a instanceof Fn);
+            if (! ok)
+                return null;
+            actuals[i++] = a;
+        }
+        Object source;
+        synchronized (LOCK) {   // 最適化前の本体の式を得る
+            Object[] original = f.profile.original;
+            source = (original != null) ? original[0] : f.body.car;
+        }
+        var calleeDeps = new ArrayList<Object>();
+        Object x = specialize(source, calleeDeps, as, depth + 1);
+        if (! Node.isSimple(x) || ! isInlinable(x))
+            return null;
+        deps.addAll(calleeDeps);
+        deps.add(ref);
+        deps.add(f);
+        return new Node.Inlined (ref, f, substitute(x, actuals), as, c);
+    }
+
+    // 式 x が自分の仮引数と大域変数と定数だけを参照するならば真
+    private static boolean isInlinable(Object x) {
+        if (x instanceof Arg) {
+            return ((Arg) x).level == 0;
+        } else if (x instanceof Node) {
+            var n = (Node) x;
+            switch (n.kind) {
+            case Node.CONST:
+                return true;
+            case Node.INTRINSIC_CALL:
+                for (Cell j = ((Node.IntrinsicCall) n).args; j != null;
+                     j = (Cell) j.cdr)
+                    if (! isInlinable(j.car))
+                        return false;
+                return true;
+            case Node.INLINED:
+                return isInlinable(((Node.Inlined) n).expr);
+            default:
+                return false;
+            }
+        } else {
+            return ! (x instanceof Cell || x instanceof Symbol ||
+                      x instanceof Fn);
+        }
+    }
+
+    // 式 x の中の仮引数 #0:i を実引数の式 actuals[i] で置き換える。
+    // 前提が崩れたときに評価する元の呼出しの中も同様に置き換える。
+    private static Object substitute(Object x, Object[] actuals) {
+        if (x instanceof Arg) {
+            return actuals[((Arg) x).offset];
+        } else if (x instanceof Node) {
+            var n = (Node) x;
+            switch (n.kind) {
+            case Node.INTRINSIC_CALL:
+                {
+                    var ic = (Node.IntrinsicCall) n;
+                    return new Node.IntrinsicCall
+                        (ic.ref, ic.fun, substituteAll(ic.args, actuals),
+                         ic.assumption,
+                         (Node.Call) substitute(ic.original, actuals));
+                }
+            case Node.INLINED:
+                {
+                    var in = (Node.Inlined) n;
+                    return new Node.Inlined
+                        (in.ref, in.fn, substitute(in.expr, actuals),
+                         in.assumption,
+                         (Node.Call) substitute(in.original, actuals));
+                }
+            case Node.CALL:
+                {
+                    var c = (Node.Call) n;
+                    return new Node.Call (substitute(c.fn, actuals),
+                                          substituteAll(c.args, actuals),
+                                          (Cell) c.form);
+                }
+            default:
+                return n;
+            }
+        } else {
+            return x;
+        }
+    }
+
+    private static Cell substituteAll(Cell j, Object[] actuals) {
+        return (j == null) ? null : j.mapcar((x)-> substitute(x, actuals));
+    }
+} // Optimizer
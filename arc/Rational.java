@@ -1,4 +1,4 @@
-// H22.10.01/R02.04.29 (鈴)
+// H22.10.01/R08.10.18 (鈴)
 package arc;
 
 import java.math.BigInteger;
@@ -30,10 +30,11 @@ public final class Rational extends Number implements Comparable<Rational>
 
 
     /** 引数に等しい有理数を返す。
-     * @param x Integer, BigInteger, または Rational
+     * @param x Integer, Long, BigInteger, または Rational
      */
     public static Rational of(Number x) {
-        if (x instanceof Integer ||x instanceof BigInteger)
+        if (x instanceof Integer || x instanceof Long ||
+            x instanceof BigInteger)
             return new Rational (x, 1);
         else
             return (Rational) x;
@@ -41,7 +42,7 @@ public final class Rational extends Number implements Comparable<Rational>
 
 
     /** 二つの整数から有理数，できれば整数を返す。
-     * @param x Integer または BigInteger
+     * @param x Integer, Long または BigInteger
      */
     public static Number result(Number x, Number y) {
         if (intCompare(y, 0) < 0) { // 分母を正にそろえる
@@ -57,7 +58,7 @@ public final class Rational extends Number implements Comparable<Rational>
             return new Rational (x, y);
     }
 
-    // 可能な限り演算結果は Integer または BigInteger にする
+    // 可能な限り演算結果は Integer, Long または BigInteger にする
 
     /** 加算 */
     public Number add(Rational x) { // a/b + c/d = (ad + bc)/bd
@@ -0,0 +1,12 @@
+// R08.10.18 (鈴)
+package arc;
+
+/** 組込み関数が呼び戻した関数の結果を受け取って処理を続ける。
+ * @see Eval#callBack(Object, Cell, Resume)
+ */
+@FunctionalInterface interface Resume {
+    /** 呼び戻した関数の結果 value を受け取り，組込み関数の本体と同じく
+     * 値を返すか，さらに eval.callBack をしてその値を返す。
+     */
+    Object resume(Object value, Eval eval);
+}
@@ -1,10 +1,21 @@
-// H22.09.07/R02.05.01 (鈴)
+// H22.09.07/R08.10.18 (鈴)
 package arc;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Arc のシンボル
+ * <p>
+ * シンボルの一意性を保つ表は並行な表であり，既存のシンボルを引くときは
+ * ロックをとらない。表はシンボルを弱参照で保持するから，文字列から
+ * 動的に作られて，もうどこからも参照されていないシンボルは回収される。
+ * 回収されるのは参照されていないシンボルだけだから，同じ印字名に
+ * 対して異なるシンボルが同時に見えることはない。
+ * キーワードは回収されないように強参照でも保持する。
  */
 public class Symbol implements Comparable<Symbol>
 {
@@ -12,10 +23,28 @@ public class Symbol implements Comparable<Symbol>
     final String name;
 
     /** シンボルの一意性を保つための表 */
-    private static final Map<String, Symbol> dict = new HashMap<> ();
+    private static final ConcurrentMap<String, Ref> dict =
+        new ConcurrentHashMap<> ();
+
+    /** 回収されたシンボルの弱参照が入る待ち行列 */
+    private static final ReferenceQueue<Symbol> queue =
+        new ReferenceQueue<> ();
+
+    /** 回収させないシンボル (キーワード) の集合 */
+    private static final Set<Symbol> pinned = ConcurrentHashMap.newKeySet();
 
     /** generateUninterned のためのカウンタ */
-    private static int gensymCounter = 0;
+    private static final AtomicInteger gensymCounter = new AtomicInteger ();
+
+    // dict の値としてのシンボルへの弱参照
+    private static final class Ref extends WeakReference<Symbol> {
+        final String name;
+
+        Ref (Symbol sym) {
+            super(sym, queue);
+            this.name = sym.name;
+        }
+    } // Ref
 
     /** 印字名から未インターンのシンボルを構築する。
      */
@@ -27,13 +56,34 @@ public class Symbol implements Comparable<Symbol>
      * @param name 印字名
      */
     public static Symbol of(String name) {
-        synchronized (dict) {
-            Symbol sym = dict.get(name);
-            if (sym == null) {
-                sym = new Symbol (name);
-                dict.put(name, sym);
+        for (;;) {
+            Ref ref = dict.get(name);
+            if (ref != null) {
+                Symbol sym = ref.get();
+                if (sym != null)
+                    return sym;
             }
-            return sym;
+            Symbol sym = new Symbol (name);
+            if (intern(name, ref, sym))
+                return sym;
+        }
+    }
+
+    // dict の name の値が old ならば sym への弱参照に置き換える。
+    // 他のスレッドに先を越されたら偽を返す。
+    private static boolean intern(String name, Ref old, Symbol sym) {
+        expunge();
+        Ref ref = new Ref (sym);
+        return (old == null) ?
+            dict.putIfAbsent(name, ref) == null :
+            dict.replace(name, old, ref);
+    }
+
+    // 回収されたシンボルのエントリを dict から取り除く。
+    private static void expunge() {
+        for (Object x; (x = queue.poll()) != null; ) {
+            Ref ref = (Ref) x;
+            dict.remove(ref.name, ref);
         }
     }
 
@@ -41,11 +91,7 @@ public class Symbol implements Comparable<Symbol>
      * Arc の (uniq) に使う。
      */
     public static Symbol generateUninterned() {
-        int i;
-        synchronized (dict) {
-            i = ++gensymCounter;
-        }
-        String name = "$G" + i;
+        String name = "$G" + gensymCounter.incrementAndGet();
         return new Symbol (name);
     }
 
@@ -79,12 +125,13 @@ public class Symbol implements Comparable<Symbol>
          *   name に対して２度目の呼出しをした。
          */
         public static Keyword of(String name) {
-            synchronized (dict) {
-                if (dict.containsKey(name)) {
+            Keyword sym = new Keyword (name);
+            for (;;) {
+                Ref ref = dict.get(name);
+                if (ref != null && ref.get() != null)
                     throw new IllegalArgumentException (name);
-                } else {
-                    Keyword sym = new Keyword (name);
-                    dict.put(name, sym);
+                if (intern(name, ref, sym)) {
+                    pinned.add(sym);
                     return sym;
                 }
             }
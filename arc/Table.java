@@ -1,83 +1,579 @@
-// H22.09.21/R02.04.29 (鈴)
+// H22.09.21/R08.10.18 (鈴)
 package arc;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
 
 /** Arc の table (ハッシュ表) を実装する。
- * char[] で表現された文字列をキーとするとき，自動的にキーを String に
- * 変換することで，ハッシュが適切に機能するようにする。
+ * 線形探査による開番地法のハッシュ表である。
+ * キーの種類に応じて，次の三つの形態を適応的に使い分ける。
+ * <ul>
+ * <li>INT: キーがすべて Integer のとき。キーを int[] に格納する。
+ * <li>SYMBOL: キーがすべて Symbol のとき。キーを同一性で比較する。
+ * <li>GENERIC: それ以外のとき。キーを equals で比較する。
+ * </ul>
+ * 最初のキーで形態を選び，その形態に合わないキーが初めて格納されたとき
+ * GENERIC へ移行する。表が空になったときは改めて形態を選び直す。
+ * <p>
+ * GENERIC で char[] で表現された文字列をキーとするときは，配列の内容から
+ * 直接ハッシュ値を求め，内容どうしを比較する。したがって検索のたびに
+ * キーを String などに変換する必要はない。
+ * ただし，文字列のキーを新しく格納するときは，後でその文字列が
+ * 書き換えられても表が壊れないように，防御的にコピーする。
+ * <p>
+ * 値として null は格納しない。null を格納することは削除を意味する。
+ * 空きの枠は値が null であることで示す。
+ * <p>
+ * iso 表では，GENERIC のキーを iso で比較し，Cell のキーのハッシュ値を
+ * その構造から求める。したがって，新しく cons されたリストでも構造が
+ * 同じならば同じキーとして扱う (memo の引数リストなど)。
+ * キーは格納時に Cell と char[] の部分を深くコピーし，ハッシュ値は
+ * 枠ごとに保持するから，格納されたキーは変更されず，再計算もしない。
+ * 循環したキーは格納できないが，検索することはできる。
+ * <p>
+ * 上限付きの表では，最も長く使われていないエントリを捨てて
+ * エントリ数を上限以下に保つ (LRU)。使用順は枠の添字による双方向
+ * リストで保持し，get と put のたびに更新する。
  */
 public class Table implements Iterable<Map.Entry<Object, Object>>
 {
-    private final Map<Object, Object> map = new HashMap<> ();
+    private static final int INITIAL_CAPACITY = 8; // 2 の冪
+
+    /** iso 表のキーの car の入れ子の深さの上限 */
+    static final int MAX_KEY_DEPTH = 1000;
+
+    // iso 表のキーのハッシュ値を求めるときにたどる Cell の個数の上限
+    private static final int HASH_BUDGET = 256;
+
+    private static final byte EMPTY = 0;
+    private static final byte INT = 1;
+    private static final byte SYMBOL = 2;
+    private static final byte GENERIC = 3;
+
+    private byte mode = EMPTY;
+    private int[] intKeys;      // INT のときのキー
+    private Object[] keys;      // SYMBOL と GENERIC のときのキー
+    private int[] hashes;       // GENERIC のときのキーのハッシュ値
+    private Object[] vals = new Object[INITIAL_CAPACITY];
+    private int size;
+    private int modCount;       // エントリの追加と削除の回数
+
+    private final boolean iso;  // キーを iso で比較するか？
+    private final int limit;    // 0 でなければエントリ数の上限
+    private int[] older;        // 上限付きのとき，一つ前に使われた枠
+    private int[] newer;        // 上限付きのとき，一つ後に使われた枠
+    private int oldest = -1;    // 最も長く使われていない枠
+    private int newest = -1;    // 最も新しく使われた枠
+
+    /** キーを equals (文字列は内容) で比較する，上限のない表を構築する。
+     */
+    public Table () {
+        this(false, 0);
+    }
+
+    /** 表を構築する。
+     * @param iso キーを iso で比較するならば true
+     * @param limit 正ならばエントリ数の上限，0 ならば上限なし
+     */
+    public Table (boolean iso, int limit) {
+        if (limit < 0)
+            throw new EvalException ("negative limit", limit);
+        this.iso = iso;
+        this.limit = limit;
+        if (limit > 0) {
+            older = new int[INITIAL_CAPACITY];
+            newer = new int[INITIAL_CAPACITY];
+        }
+    }
+
+    /** iso 表か？
+     */
+    public boolean isIso() {
+        return iso;
+    }
+
+    /** エントリ数の上限 (上限がなければ 0)
+     */
+    public int limit() {
+        return limit;
+    }
 
     /** java.util.Map#put(key, value) と同様。
      * ただし，value が null ならば java.util.Map#remove(key) と同様。
      */
     public Object put(Object key, Object value) {
-        if (key instanceof char[])
-            key = new String ((char[]) key);
-        return (value == null) ?
-            map.remove(key) :
-            map.put(key, value);
+        if (value == null)
+            return remove(key);
+        if (! fits(key)) {
+            if (size == 0)
+                reset(modeFor(key), vals.length);
+            else
+                toGeneric();
+        }
+        int i = find(key);
+        if (i >= 0) {
+            Object old = vals[i];
+            vals[i] = value;
+            touch(i);
+            return old;
+        }
+        i = ~i;
+        switch (mode) {
+        case INT:
+            intKeys[i] = (Integer) key;
+            break;
+        case SYMBOL:
+            keys[i] = key;
+            break;
+        default:
+            hashes[i] = hash(key);
+            keys[i] = iso ? copyKey(key, 0) :
+                (key instanceof char[]) ? ((char[]) key).clone() : key;
+        }
+        vals[i] = value;
+        size++;
+        modCount++;
+        if (limit > 0) {
+            link(i);
+            if (size > limit) {
+                Object k = keyAt(oldest);
+                evicted(k, removeAt(oldest));
+            }
+        }
+        if (size * 3 > vals.length * 2) // 負荷率を 2/3 以下に保つ。
+            resize(vals.length * 2);
+        return null;
     }
 
+    /** 上限付きの表が最も長く使われていないエントリを捨てたときに呼ばれる。
+     * 派生クラスで上書きして統計などに使う。
+     */
+    void evicted(Object key, Object value) {}
+
     /** java.util.Map#get と同様。
      */
     public Object get(Object key) {
-        if (key instanceof char[])
-            key = new String ((char[]) key);
-        return map.get(key);
+        if (! fits(key))
+            return null;
+        int i = find(key);
+        if (i < 0)
+            return null;
+        touch(i);
+        return vals[i];
     }
 
     /** java.util.Map#size と同様。
      */
     public int size() {
-        return map.size();
+        return size;
+    }
+
+    // 現在の形態にキーが合うか？ 合わなければ，そのキーは表にない。
+    private boolean fits(Object key) {
+        switch (mode) {
+        case INT:
+            return key instanceof Integer;
+        case SYMBOL:
+            return key instanceof Symbol;
+        case GENERIC:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static byte modeFor(Object key) {
+        if (key instanceof Integer)
+            return INT;
+        else if (key instanceof Symbol)
+            return SYMBOL;
+        else
+            return GENERIC;
+    }
+
+    // 指定の形態と容量の空の配列を用意する。
+    private void reset(byte newMode, int capacity) {
+        mode = newMode;
+        intKeys = (newMode == INT) ? new int[capacity] : null;
+        keys = (newMode == INT) ? null : new Object[capacity];
+        hashes = (newMode == GENERIC) ? new int[capacity] : null;
+        vals = new Object[capacity];
+        if (limit > 0) {
+            older = new int[capacity];
+            newer = new int[capacity];
+            oldest = newest = -1;
+        }
+    }
+
+    // 上限付きのとき，i 番目の枠を最も新しく使われたものとして
+    // 使用順のリストの末尾につなぐ。
+    private void link(int i) {
+        older[i] = newest;
+        newer[i] = -1;
+        if (newest >= 0)
+            newer[newest] = i;
+        else
+            oldest = i;
+        newest = i;
+    }
+
+    // i 番目の枠を使用順のリストから外す。
+    private void unlink(int i) {
+        int o = older[i];
+        int n = newer[i];
+        if (o >= 0)
+            newer[o] = n;
+        else
+            oldest = n;
+        if (n >= 0)
+            older[n] = o;
+        else
+            newest = o;
+    }
+
+    // 上限付きのとき，i 番目の枠を最も新しく使われたものにする。
+    private void touch(int i) {
+        if (limit > 0 && i != newest) {
+            unlink(i);
+            link(i);
+        }
+    }
+
+    // 枠を移した後，古い使用順のリスト (先頭 first, 後続 oldNewer) に
+    // 従って新しい枠 where[j] をつなぎ直す。
+    private void relink(int first, int[] oldNewer, int[] where) {
+        for (int j = first; j >= 0; j = oldNewer[j])
+            link(where[j]);
+    }
+
+    // キーがある枠の添字を返す。なければ，格納すべき空きの枠の添字を
+    // i として ~i を返す。キーは現在の形態に合っていなければならない。
+    private int find(Object key) {
+        int mask = vals.length - 1;
+        switch (mode) {
+        case INT: {
+            int k = (Integer) key;
+            for (int i = hashInt(k) & mask;; i = (i + 1) & mask) {
+                if (vals[i] == null)
+                    return ~i;
+                if (intKeys[i] == k)
+                    return i;
+            }
+        }
+        case SYMBOL:
+            for (int i = hashSymbol(key) & mask;; i = (i + 1) & mask) {
+                if (vals[i] == null)
+                    return ~i;
+                if (keys[i] == key)
+                    return i;
+            }
+        default: {
+            int h = hash(key);
+            for (int i = h & mask;; i = (i + 1) & mask) {
+                if (vals[i] == null)
+                    return ~i;
+                if (hashes[i] == h && (iso ? isoSame(keys[i], key) :
+                                       same(keys[i], key)))
+                    return i;
+            }
+        }
+        }
+    }
+
+    // i 番目の枠にあるキーのハッシュ値
+    private int hashAt(int i) {
+        switch (mode) {
+        case INT:
+            return hashInt(intKeys[i]);
+        case SYMBOL:
+            return hashSymbol(keys[i]);
+        default:
+            return hashes[i];
+        }
+    }
+
+    // i 番目の枠にあるキー (INT のときは箱に入れて返す)
+    private Object keyAt(int i) {
+        return (mode == INT) ? Integer.valueOf(intKeys[i]) : keys[i];
+    }
+
+    // i 番目の枠にあるキーを表の外へ与えるためのもの (char[] はコピーし，
+    // iso 表では Cell の部分も深くコピーする)
+    private Object keyCopyAt(int i) {
+        Object key = keyAt(i);
+        if (iso)
+            return copyKey(key, 0);
+        return (key instanceof char[]) ? ((char[]) key).clone() : key;
+    }
+
+    // j 番目の枠のエントリを i 番目の枠へ移す。
+    private void move(int j, int i) {
+        if (mode == INT) {
+            intKeys[i] = intKeys[j];
+        } else {
+            keys[i] = keys[j];
+            keys[j] = null;
+            if (mode == GENERIC)
+                hashes[i] = hashes[j];
+        }
+        vals[i] = vals[j];
+        vals[j] = null;
+        if (limit > 0) {
+            int o = older[i] = older[j];
+            int n = newer[i] = newer[j];
+            if (o >= 0)
+                newer[o] = i;
+            else
+                oldest = i;
+            if (n >= 0)
+                older[n] = i;
+            else
+                newest = i;
+        }
+    }
+
+    // キーのエントリを削除し，その値を返す。
+    // 後続のエントリを詰めることで，削除済みの印を使わずに済ませる。
+    private Object remove(Object key) {
+        if (! fits(key))
+            return null;
+        int i = find(key);
+        return (i < 0) ? null : removeAt(i);
+    }
+
+    // i 番目の枠のエントリを削除し，その値を返す。
+    private Object removeAt(int i) {
+        if (limit > 0)
+            unlink(i);
+        Object old = vals[i];
+        vals[i] = null;
+        if (keys != null)
+            keys[i] = null;
+        int mask = vals.length - 1;
+        for (int j = i;;) {
+            j = (j + 1) & mask;
+            if (vals[j] == null)
+                break;
+            int home = hashAt(j) & mask;
+            // home が巡回的に (i, j] の範囲になければ i へ移せる。
+            boolean stays = (i < j) ? (i < home && home <= j) :
+                (i < home || home <= j);
+            if (! stays) {
+                move(j, i);
+                i = j;
+            }
+        }
+        size--;
+        modCount++;
+        return old;
+    }
+
+    private void resize(int capacity) {
+        int[] oldIntKeys = intKeys;
+        Object[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        Object[] oldVals = vals;
+        int[] oldNewer = newer;
+        int first = oldest;
+        int[] where = (limit > 0) ? new int[oldVals.length] : null;
+        reset(mode, capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldVals.length; j++)
+            if (oldVals[j] != null) {
+                int h;
+                switch (mode) {
+                case INT:
+                    h = hashInt(oldIntKeys[j]);
+                    break;
+                case SYMBOL:
+                    h = hashSymbol(oldKeys[j]);
+                    break;
+                default:
+                    h = oldHashes[j];
+                }
+                int i = h & mask;
+                while (vals[i] != null)
+                    i = (i + 1) & mask;
+                if (mode == INT) {
+                    intKeys[i] = oldIntKeys[j];
+                } else {
+                    keys[i] = oldKeys[j];
+                    if (mode == GENERIC)
+                        hashes[i] = h;
+                }
+                vals[i] = oldVals[j];
+                if (where != null)
+                    where[j] = i;
+            }
+        if (where != null)
+            relink(first, oldNewer, where);
+    }
+
+    // 形態を GENERIC へ移す。キーはすでに格納時にコピー済みである。
+    private void toGeneric() {
+        int n = vals.length;
+        Object[] oldKeys = new Object[n];
+        Object[] oldVals = vals;
+        int[] oldNewer = newer;
+        int first = oldest;
+        int[] where = (limit > 0) ? new int[n] : null;
+        for (int j = 0; j < n; j++)
+            if (oldVals[j] != null)
+                oldKeys[j] = keyAt(j);
+        reset(GENERIC, n);
+        int mask = n - 1;
+        for (int j = 0; j < n; j++)
+            if (oldVals[j] != null) {
+                int h = hash(oldKeys[j]);
+                int i = h & mask;
+                while (vals[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                hashes[i] = h;
+                vals[i] = oldVals[j];
+                if (where != null)
+                    where[j] = i;
+            }
+        if (where != null)
+            relink(first, oldNewer, where);
+    }
+
+    private static int hashInt(int k) {
+        int h = k * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashSymbol(Object sym) {
+        int h = System.identityHashCode(sym);
+        return h ^ (h >>> 16);
+    }
+
+    // キーのハッシュ値。char[] は String#hashCode と同じく内容から求める。
+    // iso 表では Cell の構造から求める。
+    private int hash(Object key) {
+        int h = iso ? isoHash(key, new int[] { HASH_BUDGET }) : atomHash(key);
+        return h ^ (h >>> 16);
+    }
+
+    private static int atomHash(Object key) {
+        if (key instanceof char[]) {
+            int h = 0;
+            for (char ch: (char[]) key)
+                h = 31 * h + ch;
+            return h;
+        }
+        return Objects.hashCode(key);
+    }
+
+    // iso で等しいキーには等しい値を与える。循環した構造でも止まるように，
+    // たどる Cell の総数を budget[0] 個までに制限する (制限を超えた部分は
+    // ハッシュ値に含めない)。たどる順は構造だけで決まるから，iso で等しい
+    // キーは同じ部分をたどって同じ値になる。
+    private static int isoHash(Object key, int[] budget) {
+        if (! (key instanceof Cell))
+            return atomHash(key);
+        int h = 1;
+        Object j = key;
+        for (; j instanceof Cell && budget[0] > 0; j = ((Cell) j).cdr) {
+            budget[0]--;
+            h = 31 * h + isoHash(((Cell) j).car, budget);
+        }
+        if (! (j instanceof Cell))
+            h = 31 * h + atomHash(j);
+        return h;
+    }
+
+    // 二つのキーが等しいか？ char[] どうしは内容を比較する。
+    private static boolean same(Object a, Object b) {
+        if (a instanceof char[])
+            return (b instanceof char[]) && Arrays.equals((char[]) a,
+                                                          (char[]) b);
+        return Objects.equals(a, b);
+    }
+
+    // (iso a b) と同じ比較
+    private static boolean isoSame(Object a, Object b) {
+        for (;;) {
+            if (a == b || same(a, b))
+                return true;
+            if (! (a instanceof Cell && b instanceof Cell))
+                return false;
+            if (! isoSame(((Cell) a).car, ((Cell) b).car))
+                return false;
+            a = ((Cell) a).cdr;
+            b = ((Cell) b).cdr;
+        }
+    }
+
+    // iso 表に格納するキーとして，Cell と char[] の部分を深くコピーする。
+    // 循環したキーや car の入れ子が MAX_KEY_DEPTH より深いキーは
+    // 格納できない。したがって格納されたキーは常に有限であり，それと
+    // 比べる isoSame は検索するキーが循環していても必ず止まる。
+    private static Object copyKey(Object key, int depth) {
+        if (key instanceof char[])
+            return ((char[]) key).clone();
+        if (! (key instanceof Cell))
+            return key;
+        if (depth >= MAX_KEY_DEPTH)
+            throw new EvalException ("iso key too deep or circular");
+        Cell head = null;
+        Cell tail = null;
+        Object slow = key;      // j の半分の速さでたどって循環を検出する
+        int n = 0;
+        Object j = key;
+        for (; j instanceof Cell; j = ((Cell) j).cdr) {
+            var c = new Cell (copyKey(((Cell) j).car, depth + 1), null);
+            if (tail == null)
+                head = c;
+            else
+                tail.cdr = c;
+            tail = c;
+            if ((++n & 1) == 0)
+                slow = ((Cell) slow).cdr;
+            if (((Cell) j).cdr == slow)
+                throw new EvalException ("iso key too deep or circular");
+        }
+        tail.cdr = copyKey(j, depth + 1);
+        return head;
     }
 
     /** エントリを次々と与えるイテレータを作って返す。
+     * 文字列のキーとしては表の中に格納されている char[] のコピーを与える。
+     * iso 表では Cell のキーも深くコピーして与える。
+     * したがって，与えられたキーを変更しても表は影響を受けない。
+     * 反復の途中でエントリが追加または削除されたら
+     * ConcurrentModificationException を投げる。
      */
     @Override public Iterator<Map.Entry<Object, Object>> iterator() {
-        var entries = map.entrySet();
-        final var iter = entries.iterator();
         return new Iterator<Map.Entry<Object, Object>> () {
-            public boolean hasNext() {
-                return iter.hasNext();
+            private final int expectedModCount = modCount;
+            private int index = advance(0);
+
+            private int advance(int i) {
+                while (i < vals.length && vals[i] == null)
+                    i++;
+                return i;
             }
 
-            public Map.Entry<Object, Object> next() {
-                final var entry = iter.next();
-                Object ky = entry.getKey();
-                if (ky instanceof String) {
-                    final char[] key = ((String) ky).toCharArray();
-                    return new Map.Entry<Object, Object> () {
-                        public boolean equals(Object x) {
-                            return entry.equals(x);
-                        }
-                        public Object getKey() {
-                            return key;
-                        }
-                        public Object getValue() {
-                            return entry.getValue();
-                        }
-                        public int hashCode() {
-                            return entry.hashCode();
-                        }
-                        public Object setValue(Object value) {
-                            return entry.setValue(value);
-                        }
-                    };
-                } else {
-                    return entry;
-                }
+            public boolean hasNext() {
+                return index < vals.length;
             }
 
-            public void remove() {
-                iter.remove();
+            public Map.Entry<Object, Object> next() {
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException ();
+                if (index >= vals.length)
+                    throw new NoSuchElementException ();
+                var entry = new AbstractMap.SimpleImmutableEntry<Object, Object>
+                    (keyCopyAt(index), vals[index]);
+                index = advance(index + 1);
+                return entry;
             }
         };
     }
@@ -98,8 +594,6 @@ public class Table implements Iterable<Map.Entry<Object, Object>>
         for (Map.Entry<Object, Object> entry: this) {
             Object key = entry.getKey();
             Object val = entry.getValue();
-            if (key instanceof String)
-                key = ((String) key).toCharArray();
             Cell c = new Cell (key, val);
             if (first)
                 first = false;
@@ -0,0 +1,175 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** spawn や new-thread が返す，別スレッドでの関数呼出しの把手.
+ * (await h [timeout-ms]) で終わりを待って値を得る。
+ * 呼出しが例外で終わったら，await はその説明を持つ EvalException を投げる。
+ * new-thread のタスクが例外で終わり，そのとき誰も await していなければ，
+ * 例外をインタープリタのエラー出力に書く。
+ * 以前の new-thread のスレッドが捕捉されない例外を報告していたのと同じく，
+ * 待たれないタスクの誤りを黙って捨てないためである。
+ * <p>
+ * 既定の実行器は，仮想スレッドを使える JVM (Java 21 以降) ならば
+ * タスクごとの仮想スレッドを，さもなければデーモンスレッドのプールを使う。
+ * CPU を使い続けるタスクには (task-pool n) による n 本のスレッドの
+ * 実行器を与えることができる。
+ * <p>
+ * プールのスレッドはデーモンだから，Main は終了する前に
+ * {@link #awaitAll} ですべてのタスクの終わりを待つ。
+ * これは new-thread が非デーモンのスレッドを作っていたときと同じ振舞である。
+ */
+public final class Task
+{
+    private static final AtomicInteger counter = new AtomicInteger ();
+    private static final Object idle = new Object (); // running の監視用
+    private static int running = 0;                   // idle で保護する
+
+    /** 既定の実行器 */
+    static final ExecutorService SPAWNER = newSpawner();
+
+    private final int id = counter.incrementAndGet();
+    private final CompletableFuture<Object> result =
+        new CompletableFuture<> ();
+    private volatile boolean awaited = false; // await が呼ばれたら真
+
+    private Task () {}
+
+    // 仮想スレッドの実行器を作る。使えなければスレッドのプールを作る。
+    private static ExecutorService newSpawner() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(daemons("arc-task-"));
+        }
+    }
+
+    /** 名前が prefix で始まるデーモンスレッドを作るスレッド工場 */
+    static ThreadFactory daemons(String prefix) {
+        var n = new AtomicInteger ();
+        return (r)-> {
+            var th = new Thread (r, prefix + n.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        };
+    }
+
+    /** (task-pool [n]) n 本 (既定はプロセッサ数) のスレッドの実行器 */
+    static ExecutorService newPool(Object n) {
+        int size = (n == null) ?
+            Runtime.getRuntime().availableProcessors() : (Integer) n;
+        if (size <= 0)
+            throw new EvalException ("positive pool size expected", n);
+        return Executors.newFixedThreadPool(size, daemons("arc-pool-"));
+    }
+
+    /** 引数なしの関数 fn を executor で呼び出して，その把手を返す。
+     * fn は呼出し元と同じインタープリタと環境で評価される。
+     * @param report 真ならば，誰も await していないときの例外を報告する。
+     */
+    static Task spawn(Object fn, Eval eval, Executor executor,
+                      boolean report) {
+        IInterp interp = eval.interp;
+        Cell env = eval.env;
+        var task = new Task ();
+        synchronized (idle) {
+            running++;
+        }
+        try {
+            executor.execute(()-> {
+                    try {
+                        task.result.complete
+                            (interp.eval(new Cell(fn, null), env));
+                    } catch (Throwable ex) {
+                        task.result.completeExceptionally(ex);
+                        if (report && ! task.awaited)
+                            task.report(interp, ex);
+                    } finally {
+                        done();
+                    }
+                });
+        } catch (RuntimeException ex) { // 実行器が停止しているなど
+            done();
+            throw new EvalException ("cannot spawn", ex);
+        }
+        return task;
+    }
+
+    // 誰にも待たれずに終わった例外を Main の対話セッションと同じ形で書く。
+    private void report(IInterp interp, Throwable ex) {
+        PrintWriter err = interp.getErrorWriter();
+        err.println(this + " " + ((ex instanceof EvalException) ?
+                                  ex : "*** " + ex));
+        err.flush();
+    }
+
+    private static void done() {
+        synchronized (idle) {
+            if (--running == 0)
+                idle.notifyAll();
+        }
+    }
+
+    /** すべてのタスクが終わるまで待つ。*/
+    static void awaitAll() throws InterruptedException {
+        synchronized (idle) {
+            while (running > 0)
+                idle.wait();
+        }
+    }
+
+    /** 終わりを待って値を返す。
+     * @param timeoutMillis 待つ時間の上限 (ミリ秒)。null ならば上限なし
+     * @throws EvalException 呼出しが例外で終わった，または時間切れ
+     */
+    Object await(Object timeoutMillis) {
+        awaited = true;
+        try {
+            if (timeoutMillis == null)
+                return result.get();
+            return result.get(((Number) timeoutMillis).longValue(),
+                              TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            throw rethrown(ex);
+        } catch (TimeoutException ex) {
+            throw new EvalException ("await timed out", this);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new EvalException ("await interrupted", this);
+        }
+    }
+
+    /** 別スレッドでの評価が例外で終わったとき，呼出し元のスレッドで
+     * 投げる例外を作る。組込み関数による包装を剥いで，元の例外の説明を使う。
+     */
+    static EvalException rethrown(ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        Throwable origin = cause;
+        while (origin.getCause() != null)
+            origin = origin.getCause();
+        String msg = (origin instanceof EvalException) ?
+            origin.getMessage() : origin.toString();
+        return new EvalException (msg, (cause instanceof Exception) ?
+                                  (Exception) cause : ex);
+    }
+
+    /** 終わっていれば真 */
+    boolean isDone() {
+        return result.isDone();
+    }
+
+    @Override public String toString() {
+        return "#<task " + id + (result.isDone() ? " done>" : ">");
+    }
+} // Task
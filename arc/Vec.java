@@ -0,0 +1,101 @@
+// R08.10.18 (鈴)
+package arc;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** Arc の vec (伸長可能なベクタ) を実装する。
+ * 要素を Object[] に格納し，添字による参照と更新を O(1) で行う。
+ * Iterable だから LL.str によって #(x1 x2 ...) の形式で印字される。
+ */
+public final class Vec implements Iterable<Object>
+{
+    private Object[] elements;
+    private int size;
+
+    /** 長さ size で，各要素が x であるベクタを構築する。
+     */
+    public Vec (int size, Object x) {
+        if (size < 0)
+            throw new EvalException ("negative size", size);
+        elements = new Object[Math.max(size, 4)];
+        if (x != null)
+            Arrays.fill(elements, 0, size, x);
+        this.size = size;
+    }
+
+    /** 与えられた配列をそのまま要素の格納に使うベクタを構築する。
+     */
+    Vec (Object[] elements) {
+        this.elements = elements;
+        this.size = elements.length;
+    }
+
+    /** リストの各要素からなるベクタを作る。
+     */
+    public static Vec of(Cell list) {
+        var v = new Vec (0, null);
+        if (list != null)
+            for (Object e: list)
+                v.push(e);
+        return v;
+    }
+
+    /** 要素数を返す。
+     */
+    public int size() {
+        return size;
+    }
+
+    /** i 番目の要素を返す。
+     */
+    public Object get(int i) {
+        checkIndex(i);
+        return elements[i];
+    }
+
+    /** i 番目の要素を x にする。
+     */
+    public void set(int i, Object x) {
+        checkIndex(i);
+        elements[i] = x;
+    }
+
+    /** 末尾に x を加える。必要ならば格納用の配列を倍に伸ばす。
+     */
+    public void push(Object x) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, Math.max(size * 2, 4));
+        elements[size++] = x;
+    }
+
+    /** 要素からなるリストを新しく作る。
+     */
+    public Cell toList() {
+        return LL.mapcar(this, null);
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size)
+            throw new EvalException ("index " + i + " for", this);
+    }
+
+    /** 要素を次々と与えるイテレータを作って返す。
+     */
+    @Override public Iterator<Object> iterator() {
+        return new Iterator<Object> () {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            public Object next() {
+                if (i >= size)
+                    throw new NoSuchElementException ();
+                return elements[i++];
+            }
+        };
+    }
+} // Vec